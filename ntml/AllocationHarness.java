@@ -0,0 +1,273 @@
+package ntml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+// Runs the Scanner -> Parser -> Translator -> Formatter pipeline over
+// generated documents of growing size and measures, for each phase, the bytes
+// it allocates on the compiling thread and the heap still retained once it is
+// done. Results go to a JSON report; with a baseline, the run fails when a
+// phase allocates more bytes per input byte than the baseline allows.
+//
+//   java ntml.AllocationHarness [--max=bytes] [--style=path] [--report=path]
+//                               [--baseline=path] [--tolerance=0.1] [--update]
+//
+// The largest documents need a heap several times their size (-Xmx).
+class AllocationHarness {
+    private static final String[] PHASES = { "scan", "parse", "translate", "format" };
+    private static final long[] SIZES = {
+        1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 500_000_000L
+    };
+    // Below this size fixed costs such as reading the stylesheet dominate.
+    private static final long BASELINE_MIN_SIZE = 1_000_000L;
+    // Bytes per input byte any phase may vary by whatever its baseline: a
+    // phase allocating next to nothing, as formatting does, is mostly noise.
+    private static final double BASELINE_FLOOR = 0.005;
+
+    private static class Result {
+        final long size;
+        final Map<String, Long> allocated = new LinkedHashMap<>();
+        long retained = 0;
+
+        Result(long size) {
+            this.size = size;
+        }
+
+        double ratio(String phase) {
+            return (double)allocated.get(phase) / size;
+        }
+    }
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    private final Options options = new Options();
+
+    AllocationHarness(String stylePath) {
+        options.stylePath = stylePath;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long max = 10_000_000L;
+        String stylePath = "./style.css";
+        String report = "alloc-report.json";
+        String baseline = null;
+        double tolerance = 0.1;
+        boolean update = false;
+
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+
+            if (arg.startsWith("--max=")) {
+                max = Long.parseLong(value);
+            } else if (arg.startsWith("--style=")) {
+                stylePath = value;
+            } else if (arg.startsWith("--report=")) {
+                report = value;
+            } else if (arg.startsWith("--baseline=")) {
+                baseline = value;
+            } else if (arg.startsWith("--tolerance=")) {
+                tolerance = Double.parseDouble(value);
+            } else if (arg.equals("--update")) {
+                update = true;
+            } else {
+                System.out.println("Usage: java ntml.AllocationHarness [--max=bytes] [--style=path] "
+                        + "[--report=path] [--baseline=path] [--tolerance=fraction] [--update]");
+                System.exit(64);
+            }
+        }
+
+        AllocationHarness harness = new AllocationHarness(stylePath);
+        List<Result> results = new ArrayList<>();
+        for (long size : SIZES) {
+            if (size > max) break;
+
+            Result result = harness.measure(size);
+            results.add(result);
+            System.out.println(describe(result));
+        }
+
+        Files.writeString(Paths.get(report), json(results));
+        if (baseline == null) return;
+
+        Path path = Paths.get(baseline);
+        Map<String, Double> ratios = worst(results);
+        if (update) {
+            store(path, ratios);
+            return;
+        }
+
+        if (!check(load(path), ratios, tolerance)) System.exit(1);
+    }
+
+    Result measure(long size) throws IOException {
+        String source = corpus(size);
+        Result result = new Result(size);
+        long before;
+
+        before = allocated();
+        List<Token> tokens = new Scanner(source).scanTokens();
+        result.allocated.put("scan", allocated() - before);
+        retain(result);
+
+        before = allocated();
+        List<Expr> expressions = new Parser(tokens).parse();
+        result.allocated.put("parse", allocated() - before);
+        retain(result);
+
+        before = allocated();
+        Translator translator = new Translator(expressions);
+        List<String> tags = translator.translate();
+        result.allocated.put("translate", allocated() - before);
+        retain(result);
+
+        before = allocated();
+        Formatter formatter = new Formatter(Writer.nullWriter(), options);
+        formatter.begin("Output", List.of());
+        formatter.append(tags);
+        formatter.finish(translator.features);
+        result.allocated.put("format", allocated() - before);
+        retain(result);
+
+        return result;
+    }
+
+    private long allocated() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Everything the earlier phases produced is still reachable here, so the
+    // heap in use after a collection is what the pipeline retains so far.
+    private void retain(Result result) {
+        System.gc();
+        long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        result.retained = Math.max(result.retained, used);
+    }
+
+    // A mix of every construct, repeated until the document reaches size.
+    static String corpus(long size) {
+        String section = String.join("\n",
+            "# \"Chapter\"",
+            "## \"Section\"",
+            "> \"A paragraph of ordinary prose, long enough to look like a real note about something.\"",
+            "\"Loose text that sits between the structured parts of the note.\"",
+            "// a comment the scanner skips",
+            "$ \\sum_{i=0}^{n} x_i^2 $",
+            "§java",
+            "int total = 0; // running sum",
+            "for (int i = 0; i < n; i++) total += values[i];",
+            "§",
+            "{ \"inside a block\" ( \"grouped\" \"twice\" ) }",
+            "[ + \"first item\" + \"second item\" + ( \"nested\" \"grouping\" ) ]",
+            "[ * \"one\" * \"two\" ]",
+            "; \"term\" + \"first definition\" + \"second definition\"",
+            "(( \"https://example.org/page\" | \"a link\" ))",
+            "[[ \"figure.png\" | \"50%\" ; \"20%\" ]]",
+            "|| |- ! \"key\" ! \"value\" |- | \"a\" | \"1\" |- | \"b\" |> \"2\" ||",
+            "--",
+            "");
+
+        StringBuilder source = new StringBuilder((int)Math.min(Integer.MAX_VALUE - 8, size + section.length()));
+        while (source.length() < size) {
+            source.append(section);
+        }
+        return source.toString();
+    }
+
+    private static String describe(Result result) {
+        StringBuilder line = new StringBuilder(String.format("%,15d bytes:", result.size));
+        for (String phase : PHASES) {
+            line.append(String.format("  %s %.1f B/B", phase, result.ratio(phase)));
+        }
+        return line.append(String.format("  retained %,d", result.retained)).toString();
+    }
+
+    private static String json(List<Result> results) {
+        StringBuilder json = new StringBuilder("[\n");
+
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            json.append("  {\"inputBytes\": ").append(result.size)
+                .append(", \"retainedBytes\": ").append(result.retained)
+                .append(", \"phases\": {");
+
+            for (int j = 0; j < PHASES.length; j++) {
+                String phase = PHASES[j];
+                json.append(j == 0 ? "" : ", ")
+                    .append('"').append(phase).append("\": {\"allocatedBytes\": ")
+                    .append(result.allocated.get(phase))
+                    .append(", \"bytesPerInputByte\": ")
+                    .append(String.format(Locale.ROOT, "%.4f", result.ratio(phase)))
+                    .append('}');
+            }
+
+            json.append("}}").append(i < results.size() - 1 ? ",\n" : "\n");
+        }
+
+        return json.append("]\n").toString();
+    }
+
+    // The highest ratio of each phase over the sizes large enough to count.
+    private static Map<String, Double> worst(List<Result> results) {
+        Map<String, Double> ratios = new LinkedHashMap<>();
+
+        for (Result result : results) {
+            if (result.size < BASELINE_MIN_SIZE && results.get(results.size() - 1) != result) continue;
+
+            for (String phase : PHASES) {
+                ratios.merge(phase, result.ratio(phase), Math::max);
+            }
+        }
+
+        return ratios;
+    }
+
+    private static boolean check(Properties baseline, Map<String, Double> ratios, double tolerance) {
+        boolean passed = true;
+
+        for (Map.Entry<String, Double> entry : ratios.entrySet()) {
+            String stored = baseline.getProperty(entry.getKey());
+            if (stored == null) continue;
+
+            double allowed = Double.parseDouble(stored);
+            double limit = Math.max(allowed * (1 + tolerance), allowed + BASELINE_FLOOR);
+            if (entry.getValue() > limit) {
+                System.err.printf("%s allocates %.4f bytes per input byte, baseline allows %.4f%n",
+                                  entry.getKey(), entry.getValue(), limit);
+                passed = false;
+            }
+        }
+
+        return passed;
+    }
+
+    private static Properties load(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    private static void store(Path path, Map<String, Double> ratios) throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Double> entry : ratios.entrySet()) {
+            properties.setProperty(entry.getKey(), String.format(Locale.ROOT, "%.4f", entry.getValue()));
+        }
+
+        try (OutputStream out = Files.newOutputStream(path)) {
+            properties.store(out, "Bytes allocated per input byte, by phase");
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package ntml;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Limits on one compilation, so that a pathological document from an
+// untrusted source cannot hold a worker or the heap. Each phase counts what
+// it produces and checks the count against its limit, and the deadline is
+// checked every few thousand units of work. A compilation over budget is
+// abandoned by throwing Exceeded, which the caller reports as an error.
+//
+// The budget of the compilation running on a thread is set with start, and
+// each phase picks it up when it is created. A compilation split across
+// threads shares one budget through use, and its output is counted as a
+// whole, however many formatters write it.
+class Budget {
+    static class Exceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Exceeded(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private static final int CHECK_INTERVAL = 4096;
+    private static final Budget UNLIMITED = new Budget(new Options(), null);
+    private static final ThreadLocal<Budget> current = new ThreadLocal<>();
+
+    private final long maxInput;
+    private final long maxTokens;
+    private final long maxNodes;
+    private final long maxDepth;
+    private final long maxOutput;
+    private final long deadline;
+    private final AtomicLong output = new AtomicLong();
+
+    // Each limit is the lower of the two, the ceiling being the daemon's own
+    // limits for the requests it serves.
+    private Budget(Options options, Options ceiling) {
+        if (ceiling == null) ceiling = options;
+
+        maxInput = Math.min(options.maxInput, ceiling.maxInput);
+        maxTokens = Math.min(options.maxTokens, ceiling.maxTokens);
+        maxNodes = Math.min(options.maxNodes, ceiling.maxNodes);
+        maxDepth = Math.min(options.maxDepth, ceiling.maxDepth);
+        maxOutput = Math.min(options.maxOutput, ceiling.maxOutput);
+
+        long timeout = Math.min(options.timeoutMillis, ceiling.timeoutMillis);
+        deadline = timeout == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + timeout * 1_000_000;
+    }
+
+    static Budget start(Options options, Options ceiling) {
+        Budget budget = new Budget(options, ceiling);
+        current.set(budget);
+        return budget;
+    }
+
+    // Makes the budget of a compilation current on another of its threads,
+    // or none for null. Returns the budget current before, to be restored
+    // on a pooled thread.
+    static Budget use(Budget budget) {
+        Budget previous = current.get();
+
+        if (budget == null) {
+            current.remove();
+        } else {
+            current.set(budget);
+        }
+
+        return previous;
+    }
+
+    static void end() {
+        current.remove();
+    }
+
+    static Budget current() {
+        Budget budget = current.get();
+        return budget != null ? budget : UNLIMITED;
+    }
+
+    void input(long bytes) {
+        if (bytes > maxInput) throw new Exceeded("Input is longer than " + maxInput + " bytes.");
+    }
+
+    // Counts the bytes read through the stream.
+    InputStream input(InputStream in) {
+        return new FilterInputStream(in) {
+            private long read = 0;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) input(++read);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int count = super.read(buffer, offset, length);
+                if (count > 0) input(read += count);
+                return count;
+            }
+        };
+    }
+
+    void tokens(long count) {
+        if (count > maxTokens) throw new Exceeded("More than " + maxTokens + " tokens.");
+        work(count);
+    }
+
+    void nodes(long count) {
+        if (count > maxNodes) throw new Exceeded("More than " + maxNodes + " syntax tree nodes.");
+        work(count);
+    }
+
+    void depth(int depth) {
+        if (depth > maxDepth) throw new Exceeded("Nested deeper than " + maxDepth + " levels.");
+    }
+
+    // Adds the characters to the output of the compilation. Without a limit
+    // nothing is counted, the unlimited budget being shared by every thread.
+    void output(long characters) {
+        if (maxOutput == Long.MAX_VALUE) return;
+        if (output.addAndGet(characters) > maxOutput) throw new Exceeded("Output is longer than " + maxOutput + " characters.");
+    }
+
+    // Checks the deadline once every CHECK_INTERVAL calls, counting being
+    // far cheaper than reading the clock.
+    void work(long count) {
+        if (count % CHECK_INTERVAL != 0 || deadline == Long.MAX_VALUE) return;
+
+        if (System.nanoTime() - deadline > 0) {
+            throw new Exceeded("Compilation took longer than the time allowed.");
+        }
+    }
+}
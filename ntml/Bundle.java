@@ -0,0 +1,244 @@
+package ntml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Makes a page self-contained by inlining its local images as data URIs.
+// The encoding is streamed from the file into the output, so no image is
+// held whole, except that the encodings of small images are cached by
+// content hash for the whole batch: pages sharing an image, under any path,
+// encode it once. Both caches are LRUs, the encodings one holding at most
+// MAX_ENCODINGS of up to 256 KB each.
+//
+// With the whole body known beforehand, an image used more than once on a
+// page is encoded once, into a class in the head that replaces the content
+// of each <img> with it, and each <img> only names the class.
+class Bundle {
+    private static class Entry {
+        final long modified;
+        final String hash;
+
+        Entry(long modified, String hash) {
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    private static final int MAX_CACHED_BYTES = 256 * 1024;
+    private static final int MAX_HASHES = 4096;
+    private static final int MAX_ENCODINGS = 64;
+    private static final String IMG = "<img src=\"";
+    // A transparent pixel, for the images their class fills in.
+    private static final String PIXEL = "data:image/gif;base64,R0lGODlhAQABAIAAAAAAAP///yH5BAEAAAAALAAAAAABAAEAAAIBRAA7";
+    private static final Metrics.Cache stats = Metrics.cache("bundle");
+
+    private static final Map<Path, Entry> hashes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+            return size() > MAX_HASHES;
+        }
+    };
+
+    private static final Map<String, String> encodings = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_ENCODINGS;
+        }
+    };
+
+    private final Path base;
+    // The images used more than once, by src, with their class.
+    private final Map<String, String> classes = new HashMap<>();
+
+    Bundle(Options options) {
+        this.base = options.outputDirectory();
+    }
+
+    // Finds the local images the body uses more than once.
+    void count(List<String> body) {
+        Map<String, Integer> uses = new HashMap<>();
+
+        for (String tag : body) {
+            String src = src(tag);
+            if (src != null && local(src) != null) uses.merge(src, 1, Integer::sum);
+        }
+
+        for (Map.Entry<String, Integer> use : uses.entrySet()) {
+            if (use.getValue() > 1) classes.put(use.getKey(), "bundled-" + (classes.size() + 1));
+        }
+    }
+
+    // Writes the classes of the images used more than once, indented by
+    // depth, and returns the number of characters written.
+    long styles(Writer writer, int depth) throws IOException {
+        if (classes.isEmpty()) return 0;
+
+        String indent = "\t".repeat(depth);
+        long written = 0;
+        written += write(writer, indent + "<style>\n");
+
+        for (Map.Entry<String, String> image : classes.entrySet()) {
+            written += write(writer, indent + "\t." + image.getValue() + " { content: url(");
+            long data = data(writer, image.getKey());
+            if (data == 0) written += write(writer, image.getKey());
+            written += data + write(writer, "); }\n");
+        }
+
+        return written + write(writer, indent + "</style>\n");
+    }
+
+    // Writes the tag with its image inlined and returns the number of
+    // characters written. Tags of other kinds and images that cannot be
+    // read are written as they are.
+    long tag(Writer writer, String tag) throws IOException {
+        String src = src(tag);
+        if (src == null) return write(writer, tag);
+
+        String rest = tag.substring(IMG.length() + src.length());
+        String name = classes.get(src);
+        if (name != null) {
+            return write(writer, "<img class=\"" + name + "\" src=\"" + PIXEL + rest);
+        }
+
+        long written = write(writer, IMG);
+        long data = data(writer, src);
+        if (data == 0) written += write(writer, src);
+        return written + data + write(writer, rest);
+    }
+
+    private static String src(String tag) {
+        if (!tag.startsWith(IMG)) return null;
+
+        int end = tag.indexOf('"', IMG.length());
+        return end == -1 ? null : tag.substring(IMG.length(), end);
+    }
+
+    // Writes the image as a data URI, or nothing when it is not a readable
+    // local image. Returns the number of characters written.
+    private long data(Writer writer, String src) throws IOException {
+        Path path = local(src);
+        if (path == null) return 0;
+
+        long modified = Files.getLastModifiedTime(path).toMillis();
+        long size = Files.size(path);
+        String prefix = "data:" + type(src) + ";base64,";
+
+        if (size > MAX_CACHED_BYTES) {
+            writer.write(prefix);
+            return prefix.length() + stream(writer, path);
+        }
+
+        String encoding = cached(path, modified);
+
+        if (encoding != null) {
+            stats.hit();
+        } else {
+            stats.miss();
+            byte[] bytes = Files.readAllBytes(path);
+            String hash = hash(bytes);
+            synchronized (hashes) {
+                encoding = encodings.get(hash);
+            }
+            if (encoding == null) encoding = Base64.getEncoder().encodeToString(bytes);
+
+            synchronized (hashes) {
+                encodings.put(hash, encoding);
+                hashes.put(path, new Entry(modified, hash));
+            }
+        }
+
+        writer.write(prefix);
+        writer.write(encoding);
+        return prefix.length() + encoding.length();
+    }
+
+    // The encoding of the file as last read, if it has not changed since.
+    // Both caches are guarded by the lock on hashes.
+    private static String cached(Path path, long modified) {
+        synchronized (hashes) {
+            Entry entry = hashes.get(path);
+            return entry != null && entry.modified == modified ? encodings.get(entry.hash) : null;
+        }
+    }
+
+    // The readable local image at src, or null.
+    private Path local(String src) {
+        Path path = type(src) != null ? ImageProbe.resolve(base, src) : null;
+        return path != null && Files.isReadable(path) ? path : null;
+    }
+
+    // Encodes the file straight into the writer, a buffer at a time.
+    private static long stream(Writer writer, Path path) throws IOException {
+        long[] written = { 0 };
+        OutputStream chars = new OutputStream() {
+            private final char[] buffer = new char[8192];
+
+            @Override
+            public void write(int b) throws IOException {
+                writer.write(b);
+                written[0]++;
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                while (length > 0) {
+                    int count = Math.min(length, buffer.length);
+                    for (int i = 0; i < count; i++) {
+                        buffer[i] = (char)bytes[offset + i];
+                    }
+                    writer.write(buffer, 0, count);
+                    written[0] += count;
+                    offset += count;
+                    length -= count;
+                }
+            }
+        };
+
+        try (InputStream in = Files.newInputStream(path); OutputStream out = Base64.getEncoder().wrap(chars)) {
+            in.transferTo(out);
+        }
+
+        return written[0];
+    }
+
+    private static String type(String src) {
+        String name = src.toLowerCase(Locale.ROOT);
+        int end = name.length();
+        if (name.indexOf('?') != -1) end = Math.min(end, name.indexOf('?'));
+        if (name.indexOf('#') != -1) end = Math.min(end, name.indexOf('#'));
+        name = name.substring(0, end);
+
+        if (name.endsWith(".png")) return "image/png";
+        if (name.endsWith(".jpg") || name.endsWith(".jpeg")) return "image/jpeg";
+        if (name.endsWith(".gif")) return "image/gif";
+        if (name.endsWith(".webp")) return "image/webp";
+        if (name.endsWith(".svg")) return "image/svg+xml";
+        if (name.endsWith(".avif")) return "image/avif";
+        return null;
+    }
+
+    private static long write(Writer writer, String text) throws IOException {
+        writer.write(text);
+        return text.length();
+    }
+
+    private static String hash(byte[] bytes) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
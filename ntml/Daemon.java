@@ -0,0 +1,234 @@
+package ntml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+// Keeps a warm JVM around for editors that compile on every pause. Clients
+// connect over a Unix domain socket and send one request each:
+//
+//   request:  int argc, argc UTF arguments, int length (-1 for none), source
+//   response: int status, int count, count diagnostics, int length, html
+//
+// Each diagnostic is an int length and that many bytes of UTF-8, as it may
+// quote a lexeme longer than writeUTF allows.
+//
+// The arguments are those of the command line, with paths made absolute by
+// the client. The source is sent inline when the client reads from stdin;
+// otherwise the daemon reads the script path itself.
+class Daemon {
+    static final int OK = 0;
+    static final int USAGE = 64;
+    static final int COMPILE_ERROR = 65;
+
+    private final Path socket;
+    // Limits for every request, whatever the request asks for.
+    private final Options limits;
+
+    Daemon(Options options) {
+        this.socket = Paths.get(options.daemonSocket);
+        this.limits = options;
+    }
+
+    void serve() throws IOException {
+        Metrics.register();
+        Files.deleteIfExists(socket);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                Files.deleteIfExists(socket);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+
+        ExecutorService workers = Workers.perTask();
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+
+            while (true) {
+                SocketChannel client = server.accept();
+                workers.submit(() -> handle(client));
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private void handle(SocketChannel channel) {
+        try (channel) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+
+            List<String> diagnostics = new ArrayList<>();
+            StringWriter html = new StringWriter();
+            int status;
+
+            int length = in.readInt();
+            byte[] source = null;
+            if (length > limits.maxInput) {
+                in.skipNBytes(length);
+                diagnostics.add("Error: Input is longer than " + limits.maxInput + " bytes.");
+                status = COMPILE_ERROR;
+            } else {
+                if (length >= 0) {
+                    source = new byte[length];
+                    in.readFully(source);
+                }
+                status = compile(args, source, html, diagnostics);
+            }
+
+            out.writeInt(status);
+            out.writeInt(diagnostics.size());
+            for (String diagnostic : diagnostics) {
+                byte[] text = diagnostic.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(text.length);
+                out.write(text);
+            }
+
+            // What was written before an error is dropped.
+            byte[] bytes = status == OK ? html.toString().getBytes(Charset.defaultCharset()) : new byte[0];
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private int compile(String[] args, byte[] source, StringWriter html, List<String> diagnostics) {
+        Options options = Options.parse(args);
+
+        if (options == null) {
+            diagnostics.add(Options.USAGE);
+            return USAGE;
+        }
+
+        if (options.paginateLevel > 0) {
+            diagnostics.add("Pagination is not supported by the daemon.");
+            return USAGE;
+        }
+
+        if (options.packPath != null) {
+            diagnostics.add("Packing is not supported by the daemon.");
+            return USAGE;
+        }
+
+        if (!options.targets.equals(List.of("html"))) {
+            diagnostics.add("Only HTML is rendered by the daemon.");
+            return USAGE;
+        }
+
+        Budget budget = Budget.start(options, limits);
+
+        try {
+            Ntml.collect(diagnostics);
+            if (source == null) {
+                budget.input(Files.size(Paths.get(options.inputPath)));
+                source = Files.readAllBytes(Paths.get(options.inputPath));
+            }
+
+            List<Expr> expressions = Ntml.parse(new String(source, Charset.defaultCharset()), options);
+            if (!diagnostics.isEmpty()) return COMPILE_ERROR;
+
+            Ntml.format(expressions, options, html);
+            return OK;
+        } catch (IOException e) {
+            diagnostics.add("Error: " + e);
+            return COMPILE_ERROR;
+        } catch (Budget.Exceeded e) {
+            Ntml.error(e.getMessage());
+            return COMPILE_ERROR;
+        } finally {
+            Ntml.collect(null);
+            Budget.end();
+        }
+    }
+
+    // Forwards a command line to the daemon and writes its reply where the
+    // local compiler would have, returning the exit status.
+    static int request(String socket, String[] args, Options options) throws IOException {
+        // The daemon resolves paths against its own directory, and only uses
+        // the output path to resolve the images the page refers to.
+        Path directory = Paths.get("").toAbsolutePath();
+        List<String> forwarded = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--template=")) {
+                forwarded.add("--template=" + directory.resolve(options.templatePath));
+            } else if (arg.startsWith("--") && !arg.startsWith("--connect=")) {
+                forwarded.add(arg);
+            }
+        }
+
+        String output = options.outputPath.equals(Options.STANDARD_STREAM) ? "output.html" : options.outputPath;
+
+        forwarded.add(options.inputPath.equals(Options.STANDARD_STREAM)
+                ? Options.STANDARD_STREAM
+                : directory.resolve(options.inputPath).toString());
+        forwarded.add(directory.resolve(options.stylePath).toString());
+        forwarded.add(directory.resolve(output).toString());
+
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+
+            out.writeInt(forwarded.size());
+            for (String arg : forwarded) {
+                out.writeUTF(arg);
+            }
+
+            if (options.inputPath.equals(Options.STANDARD_STREAM)) {
+                byte[] source = System.in.readAllBytes();
+                out.writeInt(source.length);
+                out.write(source);
+            } else {
+                out.writeInt(-1);
+            }
+            out.flush();
+
+            int status = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] text = new byte[in.readInt()];
+                in.readFully(text);
+                System.err.println(new String(text, StandardCharsets.UTF_8));
+            }
+
+            byte[] html = new byte[in.readInt()];
+            in.readFully(html);
+            if (status != OK) return status;
+
+            if (options.outputPath.equals(Options.STANDARD_STREAM)) {
+                System.out.write(html);
+                System.out.flush();
+            } else {
+                try (OutputStream file = Files.newOutputStream(Paths.get(options.outputPath))) {
+                    file.write(html);
+                }
+            }
+            return status;
+        }
+    }
+}
@@ -0,0 +1,653 @@
+package ntml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+// Checks alternative engines against the reference compiler: whole-source
+// scanning, parsing, translating and formatting, as run() does. Documents
+// are generated from the parser's productions, with now and then a stray
+// token of any type to exercise the error paths. Each engine compiles every
+// document next to the reference, and the token streams, syntax trees,
+// errors and HTML are compared. The first difference is shrunk to a
+// minimal document, by dropping pieces for as long as the difference stays,
+// and printed.
+//
+// Errors are compared as sets, since engines that interleave scanning and
+// parsing report them in another order. Trees and HTML are only compared
+// for documents without errors, since recovery may keep a different part
+// of a broken streamed table than of a whole one.
+//
+//   java ntml.DiffHarness [--runs=10000] [--seed=n] [--size=30] [--engines=a,b]
+//
+// Run from the directory holding style.css. A new engine is one more entry
+// in ENGINES, leaving null the stages it does not replace.
+class DiffHarness {
+    interface Stage<T> {
+        T run(String source) throws IOException;
+    }
+
+    private static class Engine {
+        final String name;
+        final Stage<List<String>> tokens;
+        final Stage<List<Expr>> tree;
+        final Stage<String> html;
+
+        Engine(String name, Stage<List<String>> tokens, Stage<List<Expr>> tree, Stage<String> html) {
+            this.name = name;
+            this.tokens = tokens;
+            this.tree = tree;
+            this.html = html;
+        }
+    }
+
+    private static final Options OPTIONS = new Options();
+
+    private static final Engine REFERENCE = new Engine("reference",
+        source -> describe(new Scanner(source).scanTokens()),
+        source -> new Parser(new Scanner(source).scanTokens()).parse(),
+        source -> {
+            StringWriter html = new StringWriter();
+            Ntml.format(new Parser(new Scanner(source).scanTokens()).parse(), OPTIONS, html);
+            return html.toString();
+        });
+
+    private static final List<Engine> ENGINES = List.of(
+        // The scanner refilling its buffer after every few characters.
+        new Engine("chunked-reader",
+            source -> {
+                Scanner scanner = new Scanner(new Chunked(source));
+                List<Token> tokens = new ArrayList<>();
+                Token token;
+                do {
+                    token = scanner.nextToken();
+                    tokens.add(token);
+                } while (token.type != TokenType.EOF);
+                return describe(tokens);
+            }, null, null),
+        new Engine("streamed-parser", null,
+            source -> {
+                Parser parser = new Parser(new Scanner(source));
+                List<Expr> tree = new ArrayList<>();
+                while (parser.hasNext()) {
+                    Expr expr = parser.next();
+                    if (expr instanceof Expr.Table table) {
+                        List<List<Expr.Cell>> rows = new ArrayList<>();
+                        table.cells().forEach(rows::add);
+                        expr = new Expr.Table(rows);
+                    }
+                    if (expr != null) tree.add(expr);
+                }
+                return tree;
+            }, null),
+        new Engine("intern", null,
+            source -> new Parser(new Scanner(source).scanTokens()).intern().parse(),
+            source -> {
+                Options options = new Options();
+                options.intern = true;
+                StringWriter html = new StringWriter();
+                Ntml.format(Ntml.parse(source, options), options, html);
+                return html.toString();
+            }),
+        new Engine("stream", null, null,
+            source -> {
+                StringWriter html = new StringWriter();
+                Ntml.stream(new StringReader(source), html, OPTIONS);
+                return html.toString();
+            }),
+        new Engine("pipeline", null, null,
+            source -> {
+                StringWriter html = new StringWriter();
+                new Pipeline(OPTIONS).run(new StringReader(source), html);
+                return html.toString();
+            }),
+        // The optimized tree must be exactly the one a plain recursive
+        // rewrite gives, with or without interning, and stands in for the
+        // reference tree when it is. Optimized output differs in its markup
+        // but must render the same, so it stands in for the reference
+        // output when it does.
+        new Engine("optimizer", null,
+            source -> {
+                List<Expr> tree = new Parser(new Scanner(source).scanTokens()).parse();
+                List<Expr> expected = optimized(tree);
+                List<Expr> actual = Optimizer.optimize(tree, false);
+
+                // Interning reports the same errors again.
+                List<Expr> shared;
+                List<String> previous = Ntml.collect(new ArrayList<>());
+                try {
+                    shared = Optimizer.optimize(new Parser(new Scanner(source).scanTokens()).intern().parse(), true);
+                } finally {
+                    Ntml.collect(previous);
+                }
+
+                if (!actual.equals(expected)) return actual;
+                return shared.equals(expected) ? tree : shared;
+            },
+            source -> {
+                Options options = new Options();
+                options.optimize = true;
+                StringWriter html = new StringWriter();
+                Ntml.format(Ntml.parse(source, options), options, html);
+                return renderedAlike(source, html.toString());
+            }),
+        // The pipeline optimizes each expression on its own as it comes, so
+        // its output must be to the byte that of the whole tree with each
+        // top-level expression optimized alone.
+        new Engine("pipeline-optimizer", null, null,
+            source -> {
+                Options options = new Options();
+                options.optimize = true;
+                StringWriter html = new StringWriter();
+                new Pipeline(options).run(new StringReader(source), html);
+
+                // Its errors were reported by the pipeline already.
+                StringWriter expected = new StringWriter();
+                List<String> previous = Ntml.collect(new ArrayList<>());
+                try {
+                    List<Expr> each = new ArrayList<>();
+                    for (Expr expr : Ntml.parse(source, options)) {
+                        each.add(Optimizer.optimize(expr));
+                    }
+                    Ntml.format(each, OPTIONS, expected);
+                } finally {
+                    Ntml.collect(previous);
+                }
+                // Unoptimized output would match the reference, so a difference
+                // is marked as one.
+                if (!html.toString().equals(expected.toString())) {
+                    return "not optimized alike:\n" + html;
+                }
+
+                return renderedAlike(source, html.toString());
+            }));
+
+    // The reference output when the optimized output renders the same as
+    // it, otherwise the optimized output.
+    private static String renderedAlike(String source, String html) throws IOException {
+        // The reference's errors are the reference's to report.
+        List<String> previous = Ntml.collect(new ArrayList<>());
+        String expected;
+        try {
+            expected = REFERENCE.html.run(source);
+        } finally {
+            Ntml.collect(previous);
+        }
+        return rendered(html).equals(rendered(expected)) ? expected : html;
+    }
+
+    // Hands out the source a few characters at a time.
+    private static class Chunked extends Reader {
+        private final String source;
+        private final Random random = new Random(0);
+        private int position = 0;
+
+        Chunked(String source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position == source.length()) return -1;
+
+            int count = Math.min(Math.min(length, 1 + random.nextInt(7)), source.length() - position);
+            source.getChars(position, position + count, buffer, offset);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final String[] WORDS = {
+        "a", "note", "x < y", "R&D", "café", "two words", "\\\"quoted\\\"", "line\nbreak", "tab\there", ""
+    };
+
+    public static void main(String[] args) throws Exception {
+        int runs = 10_000;
+        long seed = System.nanoTime();
+        int size = 30;
+        List<Engine> engines = ENGINES;
+
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+
+            if (arg.startsWith("--runs=")) {
+                runs = Integer.parseInt(value);
+            } else if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(value);
+            } else if (arg.startsWith("--size=")) {
+                size = Integer.parseInt(value);
+            } else if (arg.startsWith("--engines=")) {
+                engines = new ArrayList<>();
+                for (String name : value.split(",")) {
+                    engines.add(engine(name));
+                }
+            } else {
+                System.out.println("Usage: java ntml.DiffHarness [--runs=n] [--seed=n] [--size=n] [--engines=a,b]");
+                System.exit(64);
+            }
+        }
+
+        Random random = new Random(seed);
+        for (int i = 0; i < runs; i++) {
+            List<String> document = new Generator(random, size).document();
+
+            for (Engine engine : engines) {
+                String difference = compare(engine, String.join("", document));
+                if (difference == null) continue;
+
+                List<String> minimal = shrink(engine, document);
+                System.err.println("Run " + i + " of seed " + seed + ", engine " + engine.name + ": "
+                        + compare(engine, String.join("", minimal)));
+                System.err.println(String.join("", minimal));
+                System.exit(1);
+            }
+        }
+
+        System.out.println(runs + " documents compiled alike by " + engines.size() + " engines, seed " + seed);
+    }
+
+    private static Engine engine(String name) {
+        for (Engine engine : ENGINES) {
+            if (engine.name.equals(name)) return engine;
+        }
+
+        throw new IllegalArgumentException("No engine " + name + ".");
+    }
+
+    // Describes the first difference between the engine and the reference,
+    // or returns null.
+    static String compare(Engine engine, String source) {
+        Result<List<String>> tokens = compare(REFERENCE.tokens, engine.tokens, source);
+        if (tokens.difference != null) return "tokens " + tokens.difference;
+
+        Result<List<Expr>> tree = compare(REFERENCE.tree, engine.tree, source);
+        if (tree.difference != null) return "tree " + tree.difference;
+
+        Result<String> html = compare(REFERENCE.html, engine.html, source);
+        if (html.difference != null) return "html " + html.difference;
+
+        return null;
+    }
+
+    private static class Result<T> {
+        T value;
+        List<String> errors = new ArrayList<>();
+        String difference;
+    }
+
+    private static <T> Result<T> compare(Stage<T> reference, Stage<T> alternative, String source) {
+        if (alternative == null) return new Result<>();
+
+        Result<T> expected = run(reference, source);
+        Result<T> actual = run(alternative, source);
+
+        if (!expected.errors.equals(actual.errors)) {
+            expected.difference = "errors differ: " + expected.errors + " against " + actual.errors;
+        } else if (expected.errors.isEmpty() && !expected.value.equals(actual.value)) {
+            expected.difference = "differ: " + firstDifference(expected.value, actual.value);
+        }
+
+        return expected;
+    }
+
+    private static <T> Result<T> run(Stage<T> stage, String source) {
+        Result<T> result = new Result<>();
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        List<String> previous = Ntml.collect(errors);
+
+        try {
+            result.value = stage.run(source);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            errors.add("threw " + e);
+        } finally {
+            Ntml.collect(previous);
+        }
+
+        result.errors.addAll(errors);
+        Collections.sort(result.errors);
+        return result;
+    }
+
+    // What the browser makes of the markup, as far as the optimizer changes
+    // it: runs of whitespace count as one space, and one definition list as
+    // good as several in a row.
+    private static String rendered(String html) {
+        return html.replaceAll("\\s+", " ").replace(" </dl> <dl>", "");
+    }
+
+    // The optimizer's rewrite, done the obvious way, by recursion: groupings
+    // spliced, or unwrapped where a single listable node is expected,
+    // adjacent texts without markup joined by a space, runs of definitions
+    // made one list, and empty texts dropped.
+    private static List<Expr> optimized(List<? extends Expr> expressions) {
+        List<Expr> spliced = new ArrayList<>();
+        for (Expr expr : expressions) {
+            Expr done = optimized(expr);
+            if (done instanceof Expr.Grouping grouping) {
+                spliced.addAll(grouping.expressions());
+            } else {
+                spliced.add(done);
+            }
+        }
+
+        List<Expr> result = new ArrayList<>();
+        List<Expr.Definition> definitions = new ArrayList<>();
+        for (Expr expr : spliced) {
+            if (expr instanceof Expr.Text text && text.content().isEmpty()) continue;
+
+            if (!(expr instanceof Expr.Definition)) definitions(definitions, result);
+
+            if (expr instanceof Expr.Definition definition) {
+                definitions.add(definition);
+            } else if (joinable(expr) && !result.isEmpty() && joinable(result.get(result.size() - 1))) {
+                Expr.Text last = (Expr.Text)result.remove(result.size() - 1);
+                result.add(new Expr.Text(last.content() + " " + ((Expr.Text)expr).content()));
+            } else {
+                result.add(expr);
+            }
+        }
+        definitions(definitions, result);
+
+        return result;
+    }
+
+    private static Expr optimized(Expr expr) {
+        if (expr instanceof Expr.Block block) return new Expr.Block(optimized(block.expressions()));
+        if (expr instanceof Expr.Grouping grouping) return new Expr.Grouping(optimized(grouping.expressions()));
+        if (expr instanceof Expr.ListItem item) return new Expr.ListItem(unwrapped(optimized(item.item())));
+
+        if (expr instanceof Expr.Listing listing) {
+            List<Expr.ListItem> items = new ArrayList<>();
+            for (Expr.ListItem item : listing.items()) {
+                items.add((Expr.ListItem)optimized(item));
+            }
+            return new Expr.Listing(items, listing.ordered());
+        }
+
+        if (expr instanceof Expr.Cell cell) {
+            return new Expr.Cell(cell.header(), cell.rowSpan(), cell.colSpan(), unwrapped(optimized(cell.content())));
+        }
+
+        if (expr instanceof Expr.Table table) {
+            List<List<Expr.Cell>> rows = new ArrayList<>();
+            for (List<Expr.Cell> row : table.cells()) {
+                List<Expr.Cell> cells = new ArrayList<>();
+                for (Expr.Cell cell : row) {
+                    cells.add((Expr.Cell)optimized(cell));
+                }
+                rows.add(cells);
+            }
+            return new Expr.Table(rows);
+        }
+
+        return expr;
+    }
+
+    private static Expr.Listable unwrapped(Expr expr) {
+        if (expr instanceof Expr.Grouping grouping && grouping.expressions().size() == 1
+                && grouping.expressions().get(0) instanceof Expr.Listable only) {
+            return only;
+        }
+        return (Expr.Listable)expr;
+    }
+
+    private static boolean joinable(Expr expr) {
+        return expr instanceof Expr.Text text && text.content().indexOf('<') == -1;
+    }
+
+    private static void definitions(List<Expr.Definition> definitions, List<Expr> result) {
+        if (definitions.size() == 1) result.add(definitions.get(0));
+        if (definitions.size() > 1) result.add(new Expr.DefinitionList(List.copyOf(definitions)));
+        definitions.clear();
+    }
+
+    private static String firstDifference(Object expected, Object actual) {
+        String[] left = expected.toString().split("\n", -1);
+        String[] right = actual.toString().split("\n", -1);
+
+        for (int i = 0; i < Math.max(left.length, right.length); i++) {
+            String a = i < left.length ? left[i] : "<end>";
+            String b = i < right.length ? right[i] : "<end>";
+            if (!a.equals(b)) return "at line " + (i + 1) + ", expected " + a + " but was " + b;
+        }
+
+        return "in ways their text does not show";
+    }
+
+    private static List<String> describe(List<Token> tokens) {
+        List<String> result = new ArrayList<>();
+        for (Token token : tokens) {
+            result.add(token.line + " " + token);
+        }
+        return result;
+    }
+
+    // Drops chunks of pieces, halving the chunk size down to single pieces,
+    // keeping every drop after which the engine still differs.
+    static List<String> shrink(Engine engine, List<String> document) {
+        List<String> current = new ArrayList<>(document);
+
+        for (int chunk = Math.max(1, current.size() / 2); chunk >= 1; chunk /= 2) {
+            boolean dropped = true;
+
+            while (dropped) {
+                dropped = false;
+
+                for (int from = 0; from < current.size(); from += chunk) {
+                    List<String> candidate = new ArrayList<>(current.subList(0, from));
+                    candidate.addAll(current.subList(Math.min(current.size(), from + chunk), current.size()));
+
+                    if (compare(engine, String.join("", candidate)) != null) {
+                        current = candidate;
+                        dropped = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        return current;
+    }
+
+    // Generates the pieces of a document, each a lexeme with the whitespace
+    // after it, following the productions of Parser.
+    private static class Generator {
+        private final Random random;
+        private final List<String> pieces = new ArrayList<>();
+        private int budget;
+
+        Generator(Random random, int size) {
+            this.random = random;
+            this.budget = 1 + random.nextInt(size);
+        }
+
+        List<String> document() {
+            while (budget > 0) {
+                expression(0);
+            }
+
+            // Now and then a stray token, anywhere.
+            if (random.nextInt(4) == 0) {
+                int strays = 1 + random.nextInt(3);
+                for (int i = 0; i < strays; i++) {
+                    TokenType[] types = TokenType.values();
+                    String stray = lexeme(types[random.nextInt(types.length)]);
+                    pieces.add(random.nextInt(pieces.size() + 1), stray + " ");
+                }
+            }
+
+            return pieces;
+        }
+
+        private void expression(int depth) {
+            budget--;
+            boolean leaf = depth > 4 || budget <= 0;
+
+            switch (random.nextInt(leaf ? 9 : 14)) {
+                case 0: code(); break;
+                case 1: listable(depth); break;
+                case 2: piece("--"); break;
+                case 3: piece("//" + word() + "\n"); expression(depth); break;
+                case 10: sequence("{", "}", depth); break;
+                case 11: table(depth); break;
+                default: listable(depth); break;
+            }
+        }
+
+        private void listable(int depth) {
+            boolean leaf = depth > 4 || budget <= 0;
+
+            switch (random.nextInt(leaf ? 8 : 10)) {
+                case 0: string(); break;
+                case 1: piece("$" + (random.nextBoolean() ? "x^2" : "\\frac{a}{b}") + "$"); break;
+                case 2: piece(new String[] { "#", "##", "###", ">" }[random.nextInt(4)]); string(); break;
+                case 3: link(); break;
+                case 4: image(); break;
+                case 5: definition(); break;
+                case 8: sequence("(", ")", depth); break;
+                case 9: listing(depth); break;
+                default: string(); break;
+            }
+        }
+
+        private void sequence(String open, String close, int depth) {
+            piece(open);
+            int count = random.nextInt(4);
+            for (int i = 0; i < count; i++) {
+                expression(depth + 1);
+            }
+            piece(close);
+        }
+
+        private void listing(int depth) {
+            String marker = random.nextBoolean() ? "*" : "+";
+            piece("[");
+            int count = random.nextInt(4);
+            for (int i = 0; i < count; i++) {
+                piece(marker);
+                budget--;
+                listable(depth + 1);
+            }
+            piece("]");
+        }
+
+        private void table(int depth) {
+            piece("||");
+            int rows = random.nextInt(4);
+            for (int row = 0; row < rows; row++) {
+                piece("|-");
+                int cells = random.nextInt(4);
+                for (int cell = 0; cell < cells; cell++) {
+                    piece(random.nextInt(3) == 0 ? "!" : "|");
+                    if (random.nextInt(4) == 0) piece(random.nextBoolean() ? "_" : ">");
+                    budget--;
+                    listable(depth + 1);
+                }
+            }
+            piece("||");
+        }
+
+        private void link() {
+            piece("((");
+            string();
+            if (random.nextBoolean()) {
+                piece("|");
+                string();
+            }
+            piece("))");
+        }
+
+        private void image() {
+            piece("[[");
+            string();
+            if (random.nextBoolean()) {
+                piece("|");
+                piece("\"" + (10 + random.nextInt(90)) + "%\"");
+                piece(";");
+                piece("\"" + (1 + random.nextInt(500)) + "\"");
+            }
+            piece("]]");
+        }
+
+        private void definition() {
+            piece(";");
+            string();
+            int count = random.nextInt(3);
+            for (int i = 0; i < count; i++) {
+                piece("+");
+                string();
+            }
+        }
+
+        private void code() {
+            String language = new String[] { "", "java\n", "python\n", "unknown\n" }[random.nextInt(4)];
+            piece("§" + language + "int x = 1; // <b>" + "§");
+        }
+
+        private void string() {
+            piece("\"" + word() + "\"");
+        }
+
+        private String word() {
+            return WORDS[random.nextInt(WORDS.length)];
+        }
+
+        private void piece(String lexeme) {
+            pieces.add(lexeme + (random.nextInt(5) == 0 ? "\n" : " "));
+        }
+
+        // A lexeme the scanner reads as a token of the type.
+        private String lexeme(TokenType type) {
+            switch (type) {
+                case PAREN_LEFT: return "(";
+                case PAREN_RIGHT: return ")";
+                case BRACE_LEFT: return "{";
+                case BRACE_RIGHT: return "}";
+                case BRACKET_LEFT: return "[";
+                case BRACKET_RIGHT: return "]";
+                case ANGLE_RIGHT: return ">";
+                case ANGLE_LEFT: return "<";
+                case DOUBLE_BRACKET_LEFT: return "[[";
+                case DOUBLE_BRACKET_RIGHT: return "]]";
+                case DOUBLE_PAREN_LEFT: return "((";
+                case DOUBLE_PAREN_RIGHT: return "))";
+                case PLUS: return "+";
+                case SEMICOLON: return ";";
+                case HASH: return "#";
+                case DOUBLE_HASH: return "##";
+                case TRIPLE_HASH: return "###";
+                case STAR: return "*";
+                case COLON: return ":";
+                case BANG: return "!";
+                case HYPHEN: return "-";
+                case UNDERSCORE: return "_";
+                case BACKSLASH: return "\\";
+                case SLASH: return "/";
+                case PIPE_HYPHEN: return "|-";
+                case DOUBLE_HYPHEN: return "--";
+                case DOUBLE_BACKSLASH: return "\\\\";
+                case PIPE: return "|";
+                case DOUBLE_PIPE: return "||";
+                case STRING: return "\"" + word() + "\"";
+                case MATH: return "$y$";
+                case CODE: return "§code§";
+                case DOUBLE_NEWLINE: return "\n\n";
+                case EOF: return "";
+            }
+
+            throw new AssertionError(type);
+        }
+    }
+}
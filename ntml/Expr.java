@@ -2,276 +2,110 @@ package ntml;
 
 import java.util.List;
 
-abstract class Expr {
-    abstract <R> R accept(Visitor<R> visitor);
+// The nodes of the syntax tree. Nodes are immutable records, and the
+// hierarchy is sealed, so code that takes a tree apart by type can handle
+// every kind of node without a visitor.
+//
+// The one exception is a table streamed by Parser.next: its cells are an
+// Iterable over rows still in the token stream, not a List. They can be
+// read once, and a second iteration throws IllegalStateException. Such a
+// table compares and hashes by identity, and prints without its rows.
+sealed interface Expr {
+    // The nodes that may be list items and table cells.
+    sealed interface Listable extends Expr {}
 
-    interface Visitor<R> {
-        R visitTitleExpr(Title expr);
-        R visitSubtitleExpr(Subtitle expr);
-        R visitCaptionExpr(Caption expr);
-        R visitBlockExpr(Block expr);
-        R visitParagraphExpr(Paragraph expr);
-        R visitListingExpr(Listing expr);
-        R visitTextExpr(Text expr);
-        R visitGroupingExpr(Grouping expr);
-        R visitListItemExpr(ListItem expr);
-        R visitHorizontalLineExpr(HorizontalLine expr);
-        R visitDefinitionExpr(Definition expr);
-        R visitLinkExpr(Link expr);
-        R visitImageExpr(Image expr);
-        R visitCodeExpr(Code expr);
-        R visitMathExpr(Math expr);
-        R visitTableExpr(Table expr);
-        R visitCellExpr(Cell expr);
-    }
-    
-    interface Listable {
-        <R> R acceptListable(Visitor<R> visitor);
-    }
-    
-    static class Text extends Expr implements Listable {
-        Text(String content) {
-            this.content = content;
-        }
-        
-        @Override
-        public <R> R acceptListable(Visitor<R> visitor) {
-            return this.accept(visitor);
-        }
-        
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitTextExpr(this);
-        }
-        
-        final String content;
-        
+    record Text(String content) implements Listable {
         @Override
         public String toString() {
             return "TEXT: " + content;
         }
     }
-    
-    static class HorizontalLine extends Expr {
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitHorizontalLineExpr(this);
-        }
-        
+
+    record HorizontalLine() implements Expr {
         @Override
         public String toString() {
             return "---";
         }
     }
-    
-    static class Math extends Expr implements Listable {
-        Math(String math) {
-            this.math = math;
-        }
-        
-        @Override
-        public <R> R acceptListable(Visitor<R> visitor) {
-            return this.accept(visitor);
-        }
-        
+
+    record Math(String math) implements Listable {
         @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitMathExpr(this);
-        }
-        
-        final String math;
-        
-        @Override 
         public String toString() {
             return "$" + math + "$";
         }
     }
-    
-    static class Code extends Expr {
+
+    record Code(String code, String language) implements Expr {
         Code(String code) {
-            this.code = code;
+            this(code, null);
         }
-        
+
         @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitCodeExpr(this);
-        }
-        
-        final String code;
-        
-        @Override 
         public String toString() {
             return "%" + code + "%";
         }
     }
-    
-    static class Image extends Expr implements Listable {
-        Image(String src, String width, String height) {
-            this.src = src;
-            this.width = width;
-            this.height = height;
-        }
-        
+
+    // Without a size, the size is left to the translator, which reads it
+    // from the image.
+    record Image(String src, String width, String height) implements Listable {
         Image(String src) {
-            this.src = src;
-            this.width = "100%";
-            this.height = "100%";
+            this(src, null, null);
         }
-        
-        @Override
-        public <R> R acceptListable(Visitor<R> visitor) {
-            return this.accept(visitor);
-        }
-        
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitImageExpr(this);
-        }
-        
-        final String src;
-        final String width;
-        final String height;
-        
+
         @Override
         public String toString() {
             return "IMG: " + src + "[" + width + ";" + height + "]";
         }
     }
-    
-    static class Link extends Expr implements Listable {
-        Link(String href, String text) {
-            this.href = href;
-            this.text = text;
-        }
-        
+
+    record Link(String href, String text) implements Listable {
         Link(String href) {
-            this.href = href;
-            this.text = href;
+            this(href, href);
         }
 
-        @Override
-        public <R> R acceptListable(Visitor<R> visitor) {
-            return this.accept(visitor);
-        }
-        
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitLinkExpr(this);
-        }
-        
-        final String text;
-        final String href;
-        
         @Override
         public String toString() {
             return "LINK: " + text + " -> " + href;
         }
     }
-    
-    static class Title extends Expr implements Listable {
-        Title(String text) {
-            this.text = text;
-        }
-        
-        @Override
-        public <R> R acceptListable(Visitor<R> visitor) {
-            return this.accept(visitor);
-        }
-        
+
+    record Include(String path, String section, int line) implements Expr {
         @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitTitleExpr(this);
+        public String toString() {
+            return "INCLUDE: " + path + (section != null ? "#" + section : "");
         }
-        
-        final String text;
-        
+    }
+
+    record Title(String text) implements Listable {
         @Override
         public String toString() {
             return "TITLE: " + text;
         }
     }
-    
-    static class Subtitle extends Expr implements Listable {
-        Subtitle(String text) {
-            this.text = text;
-        }
-        
-        @Override
-        public <R> R acceptListable(Visitor<R> visitor) {
-            return this.accept(visitor);
-        }
-        
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitSubtitleExpr(this);
-        }
-        
-        final String text;
-        
+
+    record Subtitle(String text) implements Listable {
         @Override
         public String toString() {
             return "SUBTITLE: " + text;
         }
     }
-    
-    static class Caption extends Expr implements Listable {
-        Caption(String text) {
-            this.text = text;
-        }
-        
-        @Override
-        public <R> R acceptListable(Visitor<R> visitor) {
-            return this.accept(visitor);
-        }
-        
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitCaptionExpr(this);
-        }
-        
-        final String text;
-        
+
+    record Caption(String text) implements Listable {
         @Override
         public String toString() {
             return "CAPTION: " + text;
         }
     }
-    
-    static class Paragraph extends Expr implements Listable {
-        Paragraph(String text) {
-            this.text = text;
-        }
-        
-        @Override
-        public <R> R acceptListable(Visitor<R> visitor) {
-            return this.accept(visitor);
-        }
-        
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitParagraphExpr(this);
-        }
-        
-        final String text;
-        
+
+    record Paragraph(String text) implements Listable {
         @Override
         public String toString() {
             return "PARAGRAPH: " + text;
         }
     }
-    
-    static class Block extends Expr {
-        Block(List<Expr> expressions) {
-            this.expressions = expressions;
-        }
 
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitBlockExpr(this);
-        }
-
-        final List<Expr> expressions;
-        
+    record Block(List<Expr> expressions) implements Expr {
         @Override
         public String toString() {
             String s = "BLOCK {\n";
@@ -282,23 +116,7 @@ abstract class Expr {
         }
     }
 
-    static class Grouping extends Expr implements Listable {
-        Grouping(List<Expr> expressions) {
-            this.expressions = expressions;
-        }
-
-        @Override
-        public <R> R acceptListable(Visitor<R> visitor) {
-            return this.accept(visitor);
-        }
-
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitGroupingExpr(this);
-        }
-
-        final List<Expr> expressions;
-
+    record Grouping(List<Expr> expressions) implements Listable {
         @Override
         public String toString() {
             String s = "GROUPING (\n";
@@ -308,21 +126,12 @@ abstract class Expr {
             return s + ")";
         }
     }
-    
-    static class Table extends Expr {
-        Table(List<List<Cell>> cells) {
-            this.cells = cells;
-        }
-        
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitTableExpr(this);
-        }
-        
-        final List<List<Cell>> cells;
-        
+
+    record Table(Iterable<List<Cell>> cells) implements Expr {
         @Override
         public String toString() {
+            if (!(cells instanceof List)) return "TABLE || streamed ||";
+
             String s = "TABLE ||\n";
             for (List<Cell> row : cells) {
                 for (Cell cell : row) {
@@ -333,57 +142,19 @@ abstract class Expr {
             return s + "||";
         }
     }
-    
-    static class Cell extends Expr {
-        public Cell(boolean header, int rowSpan, int colSpan, Listable content) {
-            this.header = header;
-            this.rowSpan = rowSpan;
-            this.colSpan = colSpan;
-            this.content = content;
-        }
-        
-        public Cell(boolean header) {
-            this.header = header;
-            this.rowSpan = 0;
-            this.colSpan = 0;
-            this.content = new Text("");
-        }
 
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitCellExpr(this);
+    record Cell(boolean header, int rowSpan, int colSpan, Listable content) implements Expr {
+        Cell(boolean header) {
+            this(header, 0, 0, new Text(""));
         }
-        
-        final boolean header;
-        final int rowSpan;
-        final int colSpan;
-        final Listable content;
-        
+
         @Override
         public String toString() {
             return "|" + content.toString() + "|";
         }
     }
-    
-    static class Listing extends Expr implements Listable {
-        Listing(List<ListItem> items, boolean ordered) {
-            this.items = items;
-            this.ordered = ordered;
-        }
 
-        @Override
-        public <R> R acceptListable(Visitor<R> visitor) {
-            return this.accept(visitor);
-        }
-        
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitListingExpr(this);
-        }
-        
-        final List<ListItem> items;
-        final boolean ordered;
-        
+    record Listing(List<ListItem> items, boolean ordered) implements Listable {
         @Override
         public String toString() {
             String s = "LIST [\n";
@@ -393,51 +164,35 @@ abstract class Expr {
             return s + "]";
         }
     }
-    
-    static class ListItem extends Expr {
-        public ListItem(Listable item) {
-            this.item = item;
-        }
-        
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitListItemExpr(this);
-        }
-        
-        final Listable item;
-        
+
+    record ListItem(Listable item) implements Expr {
         @Override
         public String toString() {
             return ". " + item.toString();
         }
     }
-    
-    static class Definition extends Expr implements Listable {
-        Definition(String word, List<String> definitions) {
-            this.word = word;
-            this.definitions = definitions;
-        }
-        
-        @Override
-        public <R> R acceptListable(Visitor<R> visitor) {
-            return this.accept(visitor);
-        }
-        
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitDefinitionExpr(this);
-        }
-        
-        final String word;
-        final List<String> definitions;
-        
+
+    record Definition(String word, List<String> definitions) implements Listable {
         @Override
         public String toString() {
             String result = word + ":\n";
             for (String definition : definitions) {
                 result += "- " + definition + "\n";
             }
-            
+
+            return result;
+        }
+    }
+
+    // Definitions that follow one another, in a single list.
+    record DefinitionList(List<Definition> entries) implements Listable {
+        @Override
+        public String toString() {
+            String result = "";
+            for (Definition entry : entries) {
+                result += entry.toString();
+            }
+
             return result;
         }
     }
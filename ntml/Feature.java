@@ -0,0 +1,6 @@
+package ntml;
+
+// Things a translated document uses that need assets on the page.
+enum Feature {
+    MATH
+}
@@ -1,94 +1,221 @@
 package ntml;
 
-import java.io.File;
+import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.Writer;
+import java.util.BitSet;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Arrays;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.util.Set;
 
 public class Formatter {
-    
-    static void write(List<String> tags, String outputPath, String stylePath) {
-        try {
-            File f = new File(outputPath);
-            FileWriter fw = new FileWriter(f);
-            String title = "Output";
-
-            List<String> output = new ArrayList<>();
-            output.add("<html>");
-            output.addAll(createHead(title, stylePath));
-            output.add("<body>");
-            output.add("<div class=\"main\">");
-            output.add("<script src=\"https://polyfill.io/v3/polyfill.min.js?features=es6\"></script>");
-            output.add("<script id=\"MathJax-script\" async src=\"https://cdn.jsdelivr.net/npm/mathjax@3/es5/tex-mml-chtml.js\"></script>");
-            output.addAll(tags);
-            output.add("</div>");
-            output.add("</body>");
-            output.add("</html>");
-            
-            int tabCount = 0;
-            
-            for(int i = 0; i < output.size() - 1; i++) {
-                String str = output.get(i);
-                String next = output.get(i + 1);
-                String openTagRegex = "<[^\\/][^>]*>";
-                String closedTagRegex = "<\\/[^>]*>";
-                String genericTagRegex = "<[^>]*>";
-                
-                for(int j = 0; j < tabCount; j++) {
-                    fw.write("\t");
-                }
-                fw.write(str);
-                fw.write("\n");
-                
-                if (!noIndent(str)) {
-                    if (str.matches(openTagRegex) && !next.matches(closedTagRegex)) {
-                        tabCount++;
-                    } else if (next.matches(closedTagRegex) && !str.matches(openTagRegex)) { // Se un tago indenta al contrario vuol dire che è chiuso OPPURE è contenuto seguito
-            // da un chiuso
-                        tabCount--;
-                    }
-                }
-            }
-            
-            fw.write(output.get(output.size() - 1));
-            fw.close();
+    private final Writer writer;
+    private final Template template;
+    private final boolean prune;
+    private final Bundle bundle;
+    private final Budget budget = Budget.current();
+    private int tabCount = 0;
+    private String pending = null;
+    private long written = 0;
+    // The part of written already charged to the budget.
+    private long charged = 0;
+    // The template parts before it have been written.
+    private int part = 0;
+    private String title;
+    private List<String> navigation;
+    // The rules of the stylesheet the head keeps, null for all of them.
+    private BitSet kept = null;
+
+    Formatter(Writer writer, Template template) {
+        this.writer = writer;
+        this.template = template;
+        this.prune = false;
+        this.bundle = null;
+    }
+
+    Formatter(Writer writer, Options options) throws IOException {
+        this.writer = writer;
+        this.template = Template.load(options);
+        this.prune = options.pruneStyle;
+        this.bundle = options.bundle ? new Bundle(options) : null;
+    }
+
+    static void write(String title, List<String> navigation, List<String> tags, Set<Feature> features,
+                      String outputPath, Options options) {
+        try (Writer writer = new BufferedWriter(new FileWriter(outputPath))) {
+            write(title, navigation, tags, features, writer, options);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
-    
-    static boolean noIndent(String str) {
-        if (str.matches("<link.*>") 
-            || str.matches("<img.*>") 
-            || str.matches("<script.*")
-            || str.matches("<br>")
-            || str.matches("<hr>")) {
-            return true;
+
+    static void write(String title, List<String> navigation, List<String> tags, Set<Feature> features,
+                      Writer writer, Options options) throws IOException {
+        Formatter formatter = new Formatter(writer, options);
+        formatter.begin(title, navigation, tags);
+        formatter.append(tags);
+        formatter.finish(features);
+    }
+
+    // With the whole body given, the head can keep only the rules of the
+    // stylesheet that match the page, and a bundle can share the images the
+    // page uses more than once.
+    void begin(String title, List<String> navigation, List<String> body) throws IOException {
+        if (bundle != null && template.hasHead()) bundle.count(body);
+
+        if (prune) {
+            Set<String> used = new HashSet<>(template.markup);
+            Stylesheet.scan(navigation, used);
+            Stylesheet.scan(body, used);
+            kept = template.style.select(used);
         }
-        
-        return false;
-    }
-    
-    static List<String> createHead(String title, String stylePath) throws IOException {
-        List<String> head = new ArrayList<>();
-        
-        head.add("<head>");
-        List<String> lines = Files.readAllLines(Paths.get(stylePath));
-        head.add("<style>");
-        for (String line : lines) {
-            head.add(line);
+
+        begin(title, navigation);
+    }
+
+    // Writes the template up to the body.
+    void begin(String title, List<String> navigation) throws IOException {
+        this.title = title;
+        this.navigation = navigation;
+
+        while (part < template.parts.size()) {
+            Object next = template.parts.get(part++);
+
+            if (next instanceof Template.Slot && ((Template.Slot)next).name.equals("body")) {
+                tabCount = ((Template.Slot)next).depth;
+                return;
+            }
+
+            write(next);
+        }
+    }
+
+    void append(List<String> tags) throws IOException {
+        for (String tag : tags) {
+            line(tag);
+        }
+    }
+
+    // Assets go last because only then is it known which ones the document
+    // needs. MathJax is told to skip everything but the div.math containers.
+    void finish(Set<Feature> features) throws IOException {
+        if (features.contains(Feature.MATH)) {
+            line("<script>MathJax = { options: { ignoreHtmlClass: 'main', processHtmlClass: 'math' } };</script>");
+            line("<script src=\"https://polyfill.io/v3/polyfill.min.js?features=es6\"></script>");
+            line("<script id=\"MathJax-script\" async src=\"https://cdn.jsdelivr.net/npm/mathjax@3/es5/tex-mml-chtml.js\"></script>");
         }
-        head.add("</style>");
-        head.add("<title>");
-        head.add(title);
-        head.add("</title>");
-        head.add("</head>");
-        
-        return head;
+        flush();
+
+        while (part < template.parts.size()) {
+            write(template.parts.get(part++));
+        }
+
+        writer.flush();
+        Metrics.charactersOut(written);
+    }
+
+    // Writes lines indented from depth on.
+    void block(List<String> lines, int depth) throws IOException {
+        tabCount = depth;
+        append(lines);
+        flush();
+    }
+
+    private void write(Object part) throws IOException {
+        if (part instanceof String) {
+            writer.write((String)part);
+            written += ((String)part).length();
+            charge();
+            return;
+        }
+
+        Template.Slot slot = (Template.Slot)part;
+        if (slot.name.equals("head")) {
+            write(template.head(slot, kept));
+            if (bundle != null) {
+                written += bundle.styles(writer, slot.depth);
+                charge();
+            }
+            return;
+        }
+
+        List<String> lines = slot.name.equals("title") ? List.of(title) : navigation;
+
+        if (slot.block) {
+            block(lines, slot.depth);
+        } else {
+            for (String line : lines) {
+                writer.write(line);
+                written += line.length();
+            }
+        }
+    }
+
+    private void charge() {
+        budget.output(written - charged);
+        charged = written;
+    }
+
+    private void flush() throws IOException {
+        if (pending == null) return;
+
+        indent(pending, "");
+        pending = null;
+    }
+
+    // Indentation depends on the following line, so each line is held back
+    // until the next one arrives.
+    private void line(String next) throws IOException {
+        if (pending != null) {
+            indent(pending, next);
+        }
+        pending = next;
+    }
+
+    private void indent(String str, String next) throws IOException {
+        for(int j = 0; j < tabCount; j++) {
+            writer.write("\t");
+        }
+        if (bundle != null) {
+            written += bundle.tag(writer, str);
+        } else {
+            writer.write(str);
+            written += str.length();
+        }
+        writer.write("\n");
+        written += tabCount + 1;
+        charge();
+
+        // Void tags such as <img> or <script> count as content
+        boolean open = !noIndent(str) && isOpenTag(str);
+        boolean nextClosed = isClosedTag(next);
+
+        if (open && !nextClosed) {
+            tabCount++;
+        } else if (nextClosed && !open) { // Se un tago indenta al contrario vuol dire che è chiuso OPPURE è contenuto seguito
+        // da un chiuso
+            tabCount--;
+        }
+    }
+
+    // These stand for the patterns <[^/][^>]*> and </[^>]*>, matched by hand
+    // because a Matcher per line is most of what formatting allocates.
+    private static boolean isOpenTag(String str) {
+        int last = str.length() - 1;
+        return last >= 2 && str.charAt(0) == '<' && str.charAt(1) != '/' && str.indexOf('>', 2) == last;
+    }
+
+    private static boolean isClosedTag(String str) {
+        int last = str.length() - 1;
+        return last >= 2 && str.startsWith("</") && str.indexOf('>', 2) == last;
+    }
+
+    static boolean noIndent(String str) {
+        return (str.startsWith("<link") && str.endsWith(">"))
+            || (str.startsWith("<img") && str.endsWith(">"))
+            || str.startsWith("<script")
+            || str.equals("<br>")
+            || str.equals("<hr>");
     }
 }
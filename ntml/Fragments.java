@@ -0,0 +1,203 @@
+package ntml;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Included files are compiled once and their rendered tags shared by every
+// document that includes them, for as long as the process lives: one run,
+// or every request a daemon serves. A fragment remembers the modification
+// time and hash of each file it was built from, itself and whatever it
+// includes in turn, and is compiled again as soon as any of them changes.
+// Only a file whose time has moved is read and hashed again. Fragments are
+// kept per set of options that changes their output, and the least
+// recently used are dropped past CACHE_SIZE.
+class Fragments {
+    record Source(long modified, String hash) {}
+
+    static class Fragment {
+        final List<String> tags;
+        final Set<Feature> features;
+        final List<String> errors;
+        final Map<Path, Source> sources;
+        // The targets of its links and images, checked by each document
+        // including it, against that document's output directory.
+        final List<String> links;
+
+        Fragment(List<String> tags, Set<Feature> features, List<String> errors, Map<Path, Source> sources,
+                 List<String> links) {
+            this.tags = tags;
+            this.features = features;
+            this.errors = errors;
+            this.sources = sources;
+            this.links = links;
+        }
+    }
+
+    private static final int CACHE_SIZE = 256;
+    private static final Metrics.Cache stats = Metrics.cache("fragments");
+
+    private static final Map<String, Fragment> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Fragment> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    // Returns null, after reporting why, when the file cannot be included.
+    // Two threads missing the same fragment at once both compile it; the
+    // cache is not locked while compiling because fragments include others.
+    static Fragment include(Translator from, Expr.Include expr) {
+        Path base = from.source != null ? from.source.getParent() : Paths.get("").toAbsolutePath();
+        Path path;
+        try {
+            path = base.resolve(expr.path()).normalize();
+        } catch (InvalidPathException e) {
+            Ntml.error(expr.line(), "Invalid path '" + expr.path() + "'.");
+            return null;
+        }
+
+        if (path.equals(from.source) || from.including.contains(path)) {
+            Ntml.error(expr.line(), "Include cycle through '" + expr.path() + "'.");
+            return null;
+        }
+
+        String key = key(path, expr.section(), from.options);
+        Fragment fragment;
+        synchronized (cache) {
+            fragment = cache.get(key);
+        }
+
+        if (fragment != null && isCurrent(fragment)) {
+            stats.hit();
+        } else {
+            byte[] bytes;
+            long modified;
+            try {
+                modified = Files.getLastModifiedTime(path).toMillis();
+                bytes = Files.readAllBytes(path);
+            } catch (IOException e) {
+                Ntml.error(expr.line(), "Cannot read '" + expr.path() + "'.");
+                return null;
+            }
+
+            stats.miss();
+            Source source = new Source(modified, hash(bytes));
+            fragment = compile(from, path, source, new String(bytes, Charset.defaultCharset()), expr.section());
+            synchronized (cache) {
+                cache.put(key, fragment);
+            }
+        }
+
+        // Errors are kept with the fragment, so every document including it
+        // reports them, not only the first one.
+        for (String error : fragment.errors) {
+            Ntml.error(expr.line(), "In '" + expr.path() + "': " + error);
+        }
+
+        return fragment;
+    }
+
+    // The file and section, with the options its rendering depends on.
+    private static String key(Path path, String section, Options options) {
+        return path + "#" + (section != null ? section : "") + "#" + options.tableChunkRows + ","
+                + options.optimize + "," + options.intern + "," + options.outputDirectory().toAbsolutePath();
+    }
+
+    private static Fragment compile(Translator from, Path path, Source file, String source, String section) {
+        List<String> errors = new ArrayList<>();
+        List<String> previous = Ntml.collect(errors);
+
+        try {
+            // Parsed as the including document is, so --intern shares its nodes too.
+            Parser parser = new Parser(new Scanner(source));
+            if (from.options.intern) parser.intern();
+            List<Expr> expressions = parser.parse();
+            if (section != null) expressions = section(expressions, section, errors);
+
+            Map<Path, Source> sources = new HashMap<>();
+            sources.put(path, file);
+            if (!errors.isEmpty()) return new Fragment(List.of(), Set.of(), errors, sources, List.of());
+
+            Translator translator = from.include(expressions, path);
+            List<String> tags = translator.translate();
+            sources.putAll(translator.included);
+
+            return new Fragment(tags, translator.features, errors, sources, translator.targets);
+        } finally {
+            Ntml.collect(previous);
+        }
+    }
+
+    // A section runs from its heading to the next heading of the same or a
+    // higher level.
+    private static List<Expr> section(List<Expr> expressions, String name, List<String> errors) {
+        List<Expr> result = new ArrayList<>();
+        int level = 0;
+
+        for (Expr expr : expressions) {
+            int heading = level(expr);
+
+            if (level == 0) {
+                if (heading > 0 && name.equals(text(expr))) level = heading;
+            } else if (heading > 0 && heading <= level) {
+                break;
+            }
+
+            if (level > 0) result.add(expr);
+        }
+
+        if (level == 0) errors.add("No section '" + name + "'.");
+        return result;
+    }
+
+    private static int level(Expr expr) {
+        if (expr instanceof Expr.Title) return 1;
+        if (expr instanceof Expr.Subtitle) return 2;
+        if (expr instanceof Expr.Caption) return 3;
+        return 0;
+    }
+
+    private static String text(Expr expr) {
+        if (expr instanceof Expr.Title title) return title.text();
+        if (expr instanceof Expr.Subtitle subtitle) return subtitle.text();
+        return ((Expr.Caption)expr).text();
+    }
+
+    // A file touched without being changed still matches by its hash.
+    private static boolean isCurrent(Fragment fragment) {
+        for (Map.Entry<Path, Source> source : fragment.sources.entrySet()) {
+            try {
+                long modified = Files.getLastModifiedTime(source.getKey()).toMillis();
+                if (modified == source.getValue().modified()) continue;
+
+                if (!hash(Files.readAllBytes(source.getKey())).equals(source.getValue().hash())) return false;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static String hash(byte[] bytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(digest.digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
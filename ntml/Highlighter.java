@@ -0,0 +1,225 @@
+package ntml;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Turns code into HTML with the lexical classes wrapped in spans (kw, str,
+// com, num, var), so pages need no highlighting script. The same snippets
+// recur across many notes, so results are kept in a bounded LRU cache keyed
+// by language and a hash of the code.
+class Highlighter {
+    private static final int CACHE_SIZE = 1024;
+    private static final Metrics.Cache stats = Metrics.cache("highlighter");
+
+    private static final Map<String, String> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private static class Language {
+        final Set<String> keywords;
+        final String lineComment;
+        final boolean blockComments;
+        final String quotes;
+        final boolean tripleQuotes;
+        final boolean variables;
+
+        Language(Set<String> keywords, String lineComment, boolean blockComments,
+                 String quotes, boolean tripleQuotes, boolean variables) {
+            this.keywords = keywords;
+            this.lineComment = lineComment;
+            this.blockComments = blockComments;
+            this.quotes = quotes;
+            this.tripleQuotes = tripleQuotes;
+            this.variables = variables;
+        }
+    }
+
+    private static final Language JAVA = new Language(Set.of(
+            "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class",
+            "const", "continue", "default", "do", "double", "else", "enum", "extends", "final",
+            "finally", "float", "for", "goto", "if", "implements", "import", "instanceof", "int",
+            "interface", "long", "native", "new", "package", "private", "protected", "public",
+            "record", "return", "sealed", "short", "static", "strictfp", "super", "switch",
+            "synchronized", "this", "throw", "throws", "transient", "try", "var", "void",
+            "volatile", "while", "yield", "true", "false", "null"),
+            "//", true, "\"'", true, false);
+
+    private static final Language PYTHON = new Language(Set.of(
+            "False", "None", "True", "and", "as", "assert", "async", "await", "break", "class",
+            "continue", "def", "del", "elif", "else", "except", "finally", "for", "from", "global",
+            "if", "import", "in", "is", "lambda", "nonlocal", "not", "or", "pass", "raise",
+            "return", "try", "while", "with", "yield", "self"),
+            "#", false, "\"'", true, false);
+
+    private static final Language SHELL = new Language(Set.of(
+            "if", "then", "else", "elif", "fi", "case", "esac", "for", "while", "until", "do",
+            "done", "in", "function", "select", "return", "exit", "export", "local", "readonly",
+            "set", "unset", "shift", "source", "echo", "cd"),
+            "#", false, "\"'", false, true);
+
+    private static final Language JSON = new Language(Set.of(
+            "true", "false", "null"),
+            null, false, "\"", false, false);
+
+    private static Language language(String name) {
+        switch (name) {
+            case "java": return JAVA;
+            case "python": case "py": return PYTHON;
+            case "shell": case "sh": case "bash": return SHELL;
+            case "json": return JSON;
+            default: return null;
+        }
+    }
+
+    static boolean supports(String name) {
+        return language(name) != null;
+    }
+
+    static String highlight(String name, String code) {
+        String key = name + ":" + hash(code);
+
+        synchronized (cache) {
+            String cached = cache.get(key);
+            if (cached != null) {
+                stats.hit();
+                return cached;
+            }
+        }
+
+        stats.miss();
+        String html = new Highlighter(language(name), code).highlight();
+        synchronized (cache) {
+            cache.put(key, html);
+        }
+        return html;
+    }
+
+    private static String hash(String code) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] bytes = digest.digest(code.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final Language language;
+    private final String code;
+    private final StringBuilder html = new StringBuilder();
+    private int start = 0;
+    private int current = 0;
+
+    private Highlighter(Language language, String code) {
+        this.language = language;
+        this.code = code;
+    }
+
+    private String highlight() {
+        while (!isAtEnd()) {
+            start = current;
+            char c = advance();
+
+            if (language.lineComment != null && code.startsWith(language.lineComment, start)) {
+                while (peek() != '\n' && !isAtEnd()) advance();
+                span("com");
+            } else if (language.blockComments && c == '/' && peek() == '*') {
+                int end = code.indexOf("*/", current + 1);
+                current = end == -1 ? code.length() : end + 2;
+                span("com");
+            } else if (language.quotes.indexOf(c) != -1) {
+                string(c);
+                span("str");
+            } else if (language.variables && c == '$' && isIdentifier(peek())) {
+                while (isIdentifier(peek())) advance();
+                span("var");
+            } else if (isDigit(c) || (c == '-' && isDigit(peek()) && !isIdentifier(previous()))) {
+                while (isDigit(peek()) || isIdentifier(peek()) || peek() == '.') advance();
+                span("num");
+            } else if (isIdentifier(c)) {
+                while (isIdentifier(peek())) advance();
+                if (language.keywords.contains(code.substring(start, current))) {
+                    span("kw");
+                } else {
+                    plain();
+                }
+            } else {
+                plain();
+            }
+        }
+
+        return html.toString();
+    }
+
+    private void string(char quote) {
+        String triple = "" + quote + quote + quote;
+
+        if (language.tripleQuotes && code.startsWith(triple, start)) {
+            int end = code.indexOf(triple, start + 3);
+            current = end == -1 ? code.length() : end + 3;
+            return;
+        }
+
+        while (peek() != quote && peek() != '\n' && !isAtEnd()) {
+            if (peek() == '\\') advance();
+            advance();
+        }
+
+        if (peek() == quote) advance();
+    }
+
+    private void span(String type) {
+        html.append("<span class=\"").append(type).append("\">");
+        plain();
+        html.append("</span>");
+    }
+
+    private void plain() {
+        for (int i = start; i < current; i++) {
+            char c = code.charAt(i);
+            switch (c) {
+                case '<': html.append("&lt;"); break;
+                case '>': html.append("&gt;"); break;
+                case '&': html.append("&amp;"); break;
+                default: html.append(c); break;
+            }
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIdentifier(char c) {
+        return (c >= 'a' && c <= 'z') ||
+               (c >= 'A' && c <= 'Z') ||
+               isDigit(c) || c == '_';
+    }
+
+    private boolean isAtEnd() {
+        return current >= code.length();
+    }
+
+    private char peek() {
+        if (isAtEnd()) return '\0';
+        return code.charAt(current);
+    }
+
+    private char previous() {
+        if (start == 0) return '\0';
+        return code.charAt(start - 1);
+    }
+
+    private char advance() {
+        if (isAtEnd()) return '\0';
+        return code.charAt(current++);
+    }
+}
@@ -0,0 +1,160 @@
+package ntml;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Reads the intrinsic size of local PNG, JPEG, GIF and WebP images from their
+// headers, without decoding any pixels. Results, including failures, are
+// cached by path and modification time.
+class ImageProbe {
+    private static class Entry {
+        final long modified;
+        final int[] size;
+
+        Entry(long modified, int[] size) {
+            this.modified = modified;
+            this.size = size;
+        }
+    }
+
+    private static final Map<Path, Entry> cache = new ConcurrentHashMap<>();
+    private static final Metrics.Cache stats = Metrics.cache("images");
+
+    // Returns {width, height}, or null when src is not a readable local image.
+    static int[] dimensions(Path base, String src) {
+        Path path = resolve(base, src);
+        if (path == null) return null;
+
+        try {
+            long modified = Files.getLastModifiedTime(path).toMillis();
+            Entry entry = cache.get(path);
+            if (entry != null && entry.modified == modified) {
+                stats.hit();
+                return entry.size;
+            }
+
+            stats.miss();
+            int[] size = probe(path);
+            cache.put(path, new Entry(modified, size));
+            return size;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static Path resolve(Path base, String src) {
+        if (src.contains("://") || src.startsWith("//") || src.startsWith("data:")) return null;
+
+        int end = src.length();
+        if (src.indexOf('?') != -1) end = Math.min(end, src.indexOf('?'));
+        if (src.indexOf('#') != -1) end = Math.min(end, src.indexOf('#'));
+
+        try {
+            return base.resolve(src.substring(0, end)).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private static int[] probe(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            byte[] magic = new byte[12];
+            in.readFully(magic, 0, 4);
+
+            if (magic[0] == (byte)0x89 && magic[1] == 'P' && magic[2] == 'N' && magic[3] == 'G') {
+                skip(in, 12);
+                return new int[] { in.readInt(), in.readInt() };
+            }
+
+            if (magic[0] == 'G' && magic[1] == 'I' && magic[2] == 'F') {
+                skip(in, 2);
+                return new int[] { littleEndian(in, 2), littleEndian(in, 2) };
+            }
+
+            if (magic[0] == (byte)0xFF && magic[1] == (byte)0xD8) {
+                return jpeg(in, magic[2], magic[3]);
+            }
+
+            if (magic[0] == 'R' && magic[1] == 'I' && magic[2] == 'F' && magic[3] == 'F') {
+                in.readFully(magic, 4, 8);
+                if (magic[8] == 'W' && magic[9] == 'E' && magic[10] == 'B' && magic[11] == 'P') {
+                    return webp(in);
+                }
+            }
+
+            return null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static int[] jpeg(DataInputStream in, byte first, byte marker) throws IOException {
+        while (true) {
+            if (first != (byte)0xFF) return null;
+
+            int type = marker & 0xFF;
+            if (type == 0xD9 || type == 0xDA) return null;
+
+            int length = in.readUnsignedShort();
+            boolean frame = type >= 0xC0 && type <= 0xCF && type != 0xC4 && type != 0xC8 && type != 0xCC;
+
+            if (frame) {
+                skip(in, 1);
+                int height = in.readUnsignedShort();
+                int width = in.readUnsignedShort();
+                return new int[] { width, height };
+            }
+
+            skip(in, length - 2);
+            first = in.readByte();
+            marker = in.readByte();
+            while (marker == (byte)0xFF) marker = in.readByte();
+        }
+    }
+
+    private static int[] webp(DataInputStream in) throws IOException {
+        byte[] chunk = new byte[4];
+        in.readFully(chunk);
+        String format = new String(chunk, StandardCharsets.US_ASCII);
+        skip(in, 4);
+
+        switch (format) {
+            case "VP8 ":
+                skip(in, 6);
+                return new int[] { littleEndian(in, 2) & 0x3FFF, littleEndian(in, 2) & 0x3FFF };
+            case "VP8L":
+                skip(in, 1);
+                int bits = littleEndian(in, 4);
+                return new int[] { (bits & 0x3FFF) + 1, ((bits >> 14) & 0x3FFF) + 1 };
+            case "VP8X":
+                skip(in, 4);
+                return new int[] { littleEndian(in, 3) + 1, littleEndian(in, 3) + 1 };
+            default:
+                return null;
+        }
+    }
+
+    private static int littleEndian(InputStream in, int bytes) throws IOException {
+        int value = 0;
+        for (int i = 0; i < bytes; i++) {
+            int b = in.read();
+            if (b == -1) throw new EOFException();
+            value |= b << (8 * i);
+        }
+        return value;
+    }
+
+    private static void skip(DataInputStream in, int bytes) throws IOException {
+        if (bytes < 0) throw new EOFException();
+        in.skipNBytes(bytes);
+    }
+}
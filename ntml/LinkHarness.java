@@ -0,0 +1,227 @@
+package ntml;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+// Checks the link checker against a stub resolver, so no request leaves the
+// machine. A document in a scratch directory links to local files, present
+// and missing, to a note compiled next to it, to remote URLs the stub knows
+// or not, and includes a file with broken links of its own. It is compiled
+// with --check-links and the harness fails when:
+//  - the broken targets reported differ from those expected, or come in
+//    another order than met;
+//  - a remote URL is asked about more than once, or again by a second
+//    compilation while its answer is cached;
+//  - an unreachable resolver is not reported, or its failure is cached;
+//  - remote checks do not overlap, taking as long as asking one at a time.
+//
+//   java ntml.LinkHarness [--remote=32] [--delay=50]
+class LinkHarness {
+    // Answers from a fixed set of URLs after a delay, counting each question.
+    private static class Stub implements Links.Resolver {
+        final Set<String> good;
+        final long delayMillis;
+        final Map<URI, Integer> asked = new ConcurrentHashMap<>();
+        volatile boolean down = false;
+
+        Stub(Set<String> good, long delayMillis) {
+            this.good = good;
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public boolean exists(URI uri) throws IOException, InterruptedException {
+            asked.merge(uri, 1, Integer::sum);
+            Thread.sleep(delayMillis);
+            if (down) throw new IOException("stub is down");
+            return good.contains(uri.toString());
+        }
+
+        int questions() {
+            int total = 0;
+            for (int count : asked.values()) {
+                total += count;
+            }
+            return total;
+        }
+    }
+
+    private static final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) throws IOException {
+        int remote = 32;
+        long delay = 50;
+
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+
+            if (arg.startsWith("--remote=")) {
+                remote = Integer.parseInt(value);
+            } else if (arg.startsWith("--delay=")) {
+                delay = Long.parseLong(value);
+            } else {
+                System.out.println("Usage: java ntml.LinkHarness [--remote=n] [--delay=ms]");
+                System.exit(64);
+            }
+        }
+
+        Path directory = Files.createTempDirectory("ntml-links");
+        try {
+            run(directory, remote, delay);
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            for (String failure : failures) {
+                System.err.println(failure);
+            }
+            System.exit(1);
+        }
+
+        System.out.println("Local targets and " + remote + " remote ones checked as expected against a stub resolver");
+    }
+
+    private static void run(Path directory, int remote, long delay) throws IOException {
+        Files.writeString(directory.resolve("present.html"), "");
+        Files.writeString(directory.resolve("other.ntml"), "# \"Other\"\n");
+        Files.writeString(directory.resolve("part.ntml"), "(( \"part-missing.html\" | \"part\" ))\n");
+
+        StringBuilder source = new StringBuilder("# \"Links\"\n< \"part.ntml\"\n");
+        List<String> expected = new ArrayList<>();
+        expected.add("part-missing.html");
+
+        for (String target : List.of("present.html", "missing.html", "other.html#top", "#top", "mailto:a@b.c")) {
+            source.append("(( \"").append(target).append("\" | \"local\" ))\n");
+        }
+        expected.add("missing.html");
+        source.append("[[ \"missing.png\" ]]\n");
+        expected.add("missing.png");
+
+        Set<String> good = ConcurrentHashMap.newKeySet();
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < remote; i++) {
+            String url = "https://example.org/" + i;
+            urls.add(url);
+            if (i % 3 != 0) {
+                good.add(url);
+            } else {
+                expected.add(url);
+            }
+        }
+        for (String url : urls) {
+            source.append("(( \"").append(url).append("\" | \"remote\" ))\n");
+        }
+        // Met twice, asked once.
+        source.append("(( \"").append(urls.get(0)).append("\" | \"again\" ))\n");
+
+        Path document = directory.resolve("doc.ntml");
+        Files.writeString(document, source, Charset.defaultCharset());
+        Options options = Options.parse(new String[] {
+            "--check-links", document.toString(), "./style.css", directory.resolve("doc.html").toString()
+        });
+
+        Stub stub = new Stub(good, delay);
+        Links.resolver(stub);
+
+        long start = System.nanoTime();
+        List<String> errors = compile(document, options);
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+
+        expect("first compilation", broken(expected, "no such file.", "not found."), errors);
+        for (Map.Entry<URI, Integer> question : stub.asked.entrySet()) {
+            if (question.getValue() != 1) {
+                failures.add(question.getKey() + " asked " + question.getValue() + " times");
+            }
+        }
+        if (remote > 1 && elapsed >= remote * delay) {
+            failures.add(remote + " remote checks took " + elapsed + " ms, as long as one at a time");
+        }
+
+        int questions = stub.questions();
+        expect("cached compilation", broken(expected, "no such file.", "not found."), compile(document, options));
+        if (stub.questions() != questions) {
+            failures.add("a cached compilation asked " + (stub.questions() - questions) + " more questions");
+        }
+
+        // Failures are reported and not cached, so the next build asks again.
+        Stub down = new Stub(good, 0);
+        down.down = true;
+        Links.resolver(down);
+        for (int i = 0; i < 2; i++) {
+            List<String> local = unreachable(compile(document, options), remote);
+            expect("unreachable resolver", broken(expected, "no such file.", null), local);
+        }
+        if (down.questions() != 2 * remote) {
+            failures.add("an unreachable resolver was asked " + down.questions() + " times, not " + 2 * remote);
+        }
+
+        Links.resolver(new Links.Http());
+    }
+
+    private static List<String> compile(Path document, Options options) throws IOException {
+        List<String> errors = new ArrayList<>();
+        List<String> previous = Ntml.collect(errors);
+
+        try {
+            String source = Files.readString(document, Charset.defaultCharset());
+            Ntml.format(Ntml.parse(source, options), options, new StringWriter());
+            return errors;
+        } finally {
+            Ntml.collect(previous);
+        }
+    }
+
+    // The errors for the targets, remote ones with their own problem or,
+    // for null, every remote target with the stub's failure.
+    private static List<String> broken(List<String> targets, String local, String remote) {
+        List<String> errors = new ArrayList<>();
+        for (String target : targets) {
+            boolean isRemote = target.startsWith("https://");
+            if (isRemote && remote == null) continue;
+            errors.add("Error: Broken link '" + target + "': " + (isRemote ? remote : local));
+        }
+        return errors;
+    }
+
+    // Keeps the local errors and checks that every remote target, good or
+    // not, is reported with the stub's failure.
+    private static List<String> unreachable(List<String> errors, int remote) {
+        List<String> local = new ArrayList<>();
+        int reported = 0;
+
+        for (String error : errors) {
+            if (!error.startsWith("Error: Broken link 'https://")) {
+                local.add(error);
+            } else if (error.endsWith(": unreachable (stub is down).")) {
+                reported++;
+            } else {
+                failures.add("unreachable resolver: " + error);
+            }
+        }
+
+        if (reported != remote) failures.add("unreachable resolver: " + reported + " of " + remote + " reported");
+        return local;
+    }
+
+    private static void expect(String what, List<String> expected, List<String> actual) {
+        if (!expected.equals(actual)) {
+            failures.add(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
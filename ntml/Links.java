@@ -0,0 +1,193 @@
+package ntml;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// Checks the targets of the links and images of a document. Each target is
+// checked on its own worker as soon as the translator meets it, so the
+// checks overlap translation and writing, and the compilation only waits
+// for whatever is still in flight when it reports.
+//
+// A local target must exist relative to the output directory; a link to
+// name.html is also good when name.ntml sits next to the source, as that
+// note compiles to it. Remote http and https targets are asked of the
+// resolver, and the answers are cached for a while, so that a daemon or
+// a batch of notes asks about each URL once. Local checks are a single
+// stat each, no dearer than checking a cached entry would be, so they are
+// not cached. Other schemes and bare fragments are not checked.
+class Links {
+    interface Resolver {
+        boolean exists(URI uri) throws IOException, InterruptedException;
+    }
+
+    // Asks with HEAD and, for servers that refuse it, with GET.
+    static class Http implements Resolver {
+        private static final Duration TIMEOUT = Duration.ofSeconds(10);
+        private final HttpClient client = HttpClient.newBuilder()
+                .connectTimeout(TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+
+        @Override
+        public boolean exists(URI uri) throws IOException, InterruptedException {
+            int status = status(uri, "HEAD");
+            if (status == 405 || status == 501) status = status(uri, "GET");
+            return status < 400;
+        }
+
+        private int status(URI uri, String method) throws IOException, InterruptedException {
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .method(method, HttpRequest.BodyPublishers.noBody())
+                    .timeout(TIMEOUT)
+                    .build();
+            return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+        }
+    }
+
+    private static class Answer {
+        final long time;
+        final boolean exists;
+
+        Answer(long time, boolean exists) {
+            this.time = time;
+            this.exists = exists;
+        }
+    }
+
+    private static final long REMOTE_TTL_MILLIS = 10 * 60 * 1000;
+    private static final Map<URI, Answer> remote = new ConcurrentHashMap<>();
+    private static final Metrics.Cache stats = Metrics.cache("links");
+    private static volatile Resolver resolver = new Http();
+
+    private final Path outputDirectory;
+    private final Path sourceDirectory;
+    private final boolean checkRemote;
+    private final ExecutorService workers = Workers.perTask();
+    // Each target once, in the order met.
+    private final Map<String, Future<String>> checks = new ConcurrentHashMap<>();
+    private final List<String> order = new ArrayList<>();
+
+    Links(Options options, Path source) {
+        this.outputDirectory = options.outputDirectory();
+        this.sourceDirectory = source != null ? source.getParent() : outputDirectory;
+        this.checkRemote = options.checkLinks == Options.LinkCheck.ALL;
+    }
+
+    // Replaces the resolver for remote targets, as LinkHarness does with a
+    // local stub.
+    static void resolver(Resolver replacement) {
+        resolver = replacement;
+        remote.clear();
+    }
+
+    void check(String target) {
+        checks.computeIfAbsent(target, key -> {
+            synchronized (order) {
+                order.add(key);
+            }
+            return workers.submit(() -> problem(key));
+        });
+    }
+
+    // Waits for the checks still running and reports every broken target.
+    void report() {
+        List<String> targets;
+        synchronized (order) {
+            targets = new ArrayList<>(order);
+        }
+
+        try {
+            for (String target : targets) {
+                String problem = result(checks.get(target));
+                if (problem != null) Ntml.error("Broken link '" + target + "': " + problem);
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private static String result(Future<String> check) {
+        try {
+            return check.get();
+        } catch (ExecutionException e) {
+            return e.getCause().toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "check interrupted.";
+        }
+    }
+
+    // Null when the target is good or is not checked.
+    private String problem(String target) throws InterruptedException {
+        if (target.startsWith("http://") || target.startsWith("https://")) {
+            return checkRemote ? remote(target) : null;
+        }
+
+        if (target.startsWith("#") || target.startsWith("/") || hasScheme(target)) return null;
+
+        Path path = ImageProbe.resolve(outputDirectory, target);
+        if (path == null) return "not a valid path.";
+        if (Files.exists(path)) return null;
+
+        String name = path.getFileName().toString();
+        if (name.endsWith(".html")) {
+            Path note = sourceDirectory.resolve(outputDirectory.relativize(path))
+                    .resolveSibling(name.substring(0, name.length() - 5) + ".ntml");
+            if (Files.exists(note)) return null;
+        }
+
+        return "no such file.";
+    }
+
+    private static String remote(String target) throws InterruptedException {
+        URI uri;
+        try {
+            uri = new URI(target);
+        } catch (URISyntaxException e) {
+            return "not a valid URL.";
+        }
+
+        long now = System.currentTimeMillis();
+        Answer answer = remote.get(uri);
+        if (answer != null && now - answer.time < REMOTE_TTL_MILLIS) {
+            stats.hit();
+        } else {
+            stats.miss();
+            try {
+                answer = new Answer(now, resolver.exists(uri));
+            } catch (IOException e) {
+                // Not cached: the next build asks again.
+                String reason = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+                return "unreachable (" + reason + ").";
+            }
+            remote.put(uri, answer);
+        }
+
+        return answer.exists ? null : "not found.";
+    }
+
+    private static boolean hasScheme(String target) {
+        int colon = target.indexOf(':');
+        if (colon < 1) return false;
+
+        for (int i = 0; i < colon; i++) {
+            char c = target.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '+' && c != '-' && c != '.') return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,220 @@
+package ntml;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Counters are LongAdders, which stripe their updates across cells under
+// contention, so concurrent compilations do not fight over a shared word.
+// Counting is always on; the bean is only registered by long-running modes.
+class Metrics implements MetricsMXBean {
+    enum Phase {
+        SCAN, PARSE, TRANSLATE, FORMAT, COMPILE
+    }
+
+    static class Cache {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        void hit() {
+            hits.increment();
+        }
+
+        void miss() {
+            misses.increment();
+        }
+    }
+
+    // Durations fall into power-of-two buckets of microseconds.
+    private static class Histogram {
+        private static final int BUCKETS = 40;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) buckets[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            long micros = nanos / 1000;
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets[bucket].increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        Latency latency() {
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+
+            double mean = count == 0 ? 0 : total.sum() / 1e6 / count;
+            return new Latency(count, mean, percentile(counts, count, 0.5),
+                               percentile(counts, count, 0.9), percentile(counts, count, 0.99),
+                               max.get() / 1e6);
+        }
+
+        // The upper bound of the bucket holding the given fraction of samples.
+        private static double percentile(long[] counts, long count, double fraction) {
+            long target = (long)Math.ceil(count * fraction);
+            long seen = 0;
+
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= target && seen > 0) return (1L << i) / 1000.0;
+            }
+
+            return 0;
+        }
+
+        void reset() {
+            for (LongAdder bucket : buckets) bucket.reset();
+            total.reset();
+            max.reset();
+        }
+    }
+
+    private static final LongAdder documents = new LongAdder();
+    private static final LongAdder charactersIn = new LongAdder();
+    private static final LongAdder charactersOut = new LongAdder();
+    private static final LongAdder tokens = new LongAdder();
+    private static final LongAdder errors = new LongAdder();
+
+    private static final Map<String, LongAdder> nodes = new ConcurrentHashMap<>();
+    private static final ClassValue<LongAdder> nodeCounters = new ClassValue<>() {
+        @Override
+        protected LongAdder computeValue(Class<?> type) {
+            return nodes.computeIfAbsent(type.getSimpleName(), name -> new LongAdder());
+        }
+    };
+
+    private static final Map<String, Cache> caches = new ConcurrentHashMap<>();
+    private static final Histogram[] phases = new Histogram[Phase.values().length];
+
+    static {
+        for (int i = 0; i < phases.length; i++) phases[i] = new Histogram();
+    }
+
+    static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                             .registerMBean(new Metrics(), new ObjectName("ntml:type=Metrics"));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static void document() {
+        documents.increment();
+    }
+
+    static void charactersIn(long count) {
+        charactersIn.add(count);
+    }
+
+    static void charactersOut(long count) {
+        charactersOut.add(count);
+    }
+
+    static void tokens(long count) {
+        tokens.add(count);
+    }
+
+    static void error() {
+        errors.increment();
+    }
+
+    static void node(Expr expr) {
+        nodeCounters.get(expr.getClass()).increment();
+    }
+
+    static Cache cache(String name) {
+        return caches.computeIfAbsent(name, key -> new Cache());
+    }
+
+    // Records the time since start, as taken from System.nanoTime(), and
+    // returns the current time so phases can be timed back to back.
+    static long phase(Phase phase, long start) {
+        long now = System.nanoTime();
+        phases[phase.ordinal()].record(now - start);
+        return now;
+    }
+
+    @Override
+    public long getDocumentsCompiled() {
+        return documents.sum();
+    }
+
+    @Override
+    public long getCharactersIn() {
+        return charactersIn.sum();
+    }
+
+    @Override
+    public long getCharactersOut() {
+        return charactersOut.sum();
+    }
+
+    @Override
+    public long getTokens() {
+        return tokens.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public Map<String, Long> getNodesByType() {
+        Map<String, Long> result = new TreeMap<>();
+        nodes.forEach((type, count) -> result.put(type, count.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getCacheHitRates() {
+        Map<String, Double> result = new TreeMap<>();
+        caches.forEach((name, cache) -> {
+            long hits = cache.hits.sum();
+            long lookups = hits + cache.misses.sum();
+            result.put(name, lookups == 0 ? 0 : (double)hits / lookups);
+        });
+        return result;
+    }
+
+    @Override
+    public Map<String, Latency> getPhaseLatencies() {
+        Map<String, Latency> result = new TreeMap<>();
+        for (Phase phase : Phase.values()) {
+            result.put(phase.name().toLowerCase(Locale.ROOT), phases[phase.ordinal()].latency());
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        documents.reset();
+        charactersIn.reset();
+        charactersOut.reset();
+        tokens.reset();
+        errors.reset();
+        nodes.values().forEach(LongAdder::reset);
+        caches.values().forEach(cache -> {
+            cache.hits.reset();
+            cache.misses.reset();
+        });
+        for (Histogram histogram : phases) histogram.reset();
+    }
+}
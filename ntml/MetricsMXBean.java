@@ -0,0 +1,68 @@
+package ntml;
+
+import java.util.Map;
+
+// Live compiler counters, readable over JMX as ntml:type=Metrics while the
+// compiler runs in a long-lived process such as the daemon.
+public interface MetricsMXBean {
+    long getDocumentsCompiled();
+
+    long getCharactersIn();
+
+    long getCharactersOut();
+
+    long getTokens();
+
+    long getErrors();
+
+    Map<String, Long> getNodesByType();
+
+    Map<String, Double> getCacheHitRates();
+
+    Map<String, Latency> getPhaseLatencies();
+
+    void reset();
+
+    class Latency {
+        private final long count;
+        private final double meanMillis;
+        private final double p50Millis;
+        private final double p90Millis;
+        private final double p99Millis;
+        private final double maxMillis;
+
+        public Latency(long count, double meanMillis, double p50Millis, double p90Millis,
+                       double p99Millis, double maxMillis) {
+            this.count = count;
+            this.meanMillis = meanMillis;
+            this.p50Millis = p50Millis;
+            this.p90Millis = p90Millis;
+            this.p99Millis = p99Millis;
+            this.maxMillis = maxMillis;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP90Millis() {
+            return p90Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package ntml;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Parses and translates blocks, lists, tables and groupings nested 100,000
+// deep, and all four mixed, on a thread with a small stack, so that any
+// recursion left in the parser or the translator overflows it. Tables are
+// held in groupings, the only way a list item or a cell can hold one. Each
+// document is parsed whole and streamed, and translated as is, optimized
+// and interned. The run fails when a compilation does not finish in time,
+// reports an error, or yields output whose tags do not balance or that
+// differs between the translations.
+//
+//   java ntml.NestingStress [--depth=100000]
+class NestingStress {
+    private static final long TIMEOUT_MILLIS = 60_000;
+    // Far less than recursing once per level would need.
+    private static final long STACK_SIZE = 256 * 1024;
+    private static final String[] SHAPES = { "blocks", "lists", "tables", "groupings", "mixed" };
+    private static final String[][] NESTINGS = {
+        { "{ ", " }" }, { "[ + ", " ]" }, { "( || |- | ", " || )" }, { "( ", " )" }
+    };
+
+    public static void main(String[] args) throws Exception {
+        int depth = 100_000;
+
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+
+            if (arg.startsWith("--depth=")) {
+                depth = Integer.parseInt(value);
+            } else {
+                System.out.println("Usage: java ntml.NestingStress [--depth=n]");
+                System.exit(64);
+            }
+        }
+
+        ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(null, runnable, "nesting-stress", STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        boolean failed = false;
+        for (int shape = 0; shape < SHAPES.length; shape++) {
+            String source = document(shape, depth);
+            long start = System.nanoTime();
+            String failure = check(executor, source);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+
+            if (failure != null) {
+                System.err.println(SHAPES[shape] + " nested " + depth + " deep: " + failure);
+                failed = true;
+            } else {
+                System.out.printf(Locale.ROOT, "  %-10s %,d deep: %,d ms%n", SHAPES[shape], depth, millis);
+            }
+        }
+
+        if (failed) System.exit(1);
+    }
+
+    // The shape's openings, then a text, then its closings. The mixed shape
+    // cycles through the others level by level, in an order where each
+    // holds the next: no list item or cell can hold a block.
+    private static String document(int shape, int depth) {
+        StringBuilder source = new StringBuilder();
+
+        for (int level = 0; level < depth; level++) {
+            source.append(nesting(shape, level)[0]);
+        }
+        source.append("\"x\"");
+        for (int level = depth - 1; level >= 0; level--) {
+            source.append(nesting(shape, level)[1]);
+        }
+
+        return source.append('\n').toString();
+    }
+
+    private static String[] nesting(int shape, int level) {
+        return NESTINGS[shape < NESTINGS.length ? shape : level % NESTINGS.length];
+    }
+
+    private static String check(ExecutorService executor, String source) throws Exception {
+        Future<String> result = executor.submit(() -> {
+            List<String> errors = new ArrayList<>();
+            List<String> previous = Ntml.collect(errors);
+
+            try {
+                Options options = new Options();
+                List<Expr> tree = Ntml.parse(source, options);
+                if (!errors.isEmpty()) return "parsing reported " + errors.get(0);
+                if (tree.size() != 1) return "parsed into " + tree.size() + " expressions, not one";
+
+                Parser streamed = new Parser(new Scanner(new StringReader(source)));
+                int count = 0;
+                while (streamed.hasNext()) {
+                    Expr expr = streamed.next();
+                    if (expr == null) continue;
+
+                    count++;
+                    // A streamed table is parsed as its rows are read.
+                    if (expr instanceof Expr.Table table) {
+                        for (List<Expr.Cell> row : table.cells()) {}
+                    }
+                }
+                if (!errors.isEmpty()) return "streaming reported " + errors.get(0);
+                if (count != 1) return "streamed into " + count + " expressions, not one";
+
+                List<String> tags = new Translator(tree, options).translate();
+                String failure = balance(tags);
+                if (failure != null) return failure;
+
+                Options optimize = new Options();
+                optimize.optimize = true;
+                if (!tags.equals(new Translator(tree, optimize).translate())) return "optimized output differs";
+
+                Options intern = new Options();
+                intern.intern = true;
+                if (!tags.equals(new Translator(Ntml.parse(source, intern), intern).translate())) {
+                    return "interned output differs";
+                }
+
+                return errors.isEmpty() ? null : "translation reported " + errors.get(0);
+            } catch (StackOverflowError e) {
+                return "stack overflow";
+            } finally {
+                Ntml.collect(previous);
+            }
+        });
+
+        try {
+            return result.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            return "no result after " + TIMEOUT_MILLIS + " ms";
+        }
+    }
+
+    // Every tag opened is closed, and the text is there once.
+    private static String balance(List<String> tags) {
+        int open = 0;
+        int texts = 0;
+
+        for (String tag : tags) {
+            if (tag.startsWith("</")) {
+                if (--open < 0) return "closes " + tag + " with nothing open";
+            } else if (tag.startsWith("<")) {
+                open++;
+            } else if (tag.equals("x")) {
+                texts++;
+            }
+        }
+
+        if (open != 0) return open + " tags left open";
+        return texts == 1 ? null : "the text appears " + texts + " times";
+    }
+}
@@ -1,62 +1,259 @@
 package ntml;
 
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
 
 public class Ntml {
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
-    
+    private static final ThreadLocal<List<String>> collected = new ThreadLocal<>();
+
     public static void main(String[] args) throws IOException {
-        String defaultOutputFilePath = "./output.html";
-        String deafultStyleFilePath = "./style.css";
-        
-        if (args.length > 3 || args.length < 1) {
-            System.out.println("Usage: ntml [script]");
+        Options options = Options.parse(args);
+
+        if (options == null) {
+            System.out.println(Options.USAGE);
             System.exit(64);
-        } else if (args.length == 3) {
-            runFile(args[0], args[1], args[2]);
-        } else if (args.length == 2) {
-            runFile(args[0], args[1], defaultOutputFilePath);
-        } else if (args.length == 1) {
-            runFile(args[0], deafultStyleFilePath, defaultOutputFilePath);
+        } else if (options.daemonSocket != null) {
+            new Daemon(options).serve();
+        } else if (options.servePath != null) {
+            new Server(options).serve();
+        } else if (options.connectSocket != null) {
+            System.exit(Daemon.request(options.connectSocket, args, options));
+        } else if (options.stream) {
+            streamFile(options);
+        } else if (options.pipeline) {
+            pipelineFile(options);
+        } else {
+            runFile(options);
         }
     }
-  
-    private static void runFile(String path, String outputPath, String stylePath) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()), outputPath, stylePath);
+
+    private static void runFile(Options options) throws IOException {
+        Budget budget = Budget.start(options, null);
+
+        try {
+            budget.input(Files.size(Paths.get(options.inputPath)));
+            byte[] bytes = Files.readAllBytes(Paths.get(options.inputPath));
+            run(new String(bytes, Charset.defaultCharset()), options);
+        } catch (Budget.Exceeded e) {
+            error(e.getMessage());
+        }
+
+        if (hadError) System.exit(65);
+        if (hadRuntimeError) System.exit(70);
+    }
+
+    private static void streamFile(Options options) throws IOException {
+        Budget budget = Budget.start(options, null);
+
+        try (Reader reader = openInput(options.inputPath, budget); Writer writer = openOutput(options.outputPath)) {
+            stream(reader, writer, options);
+        } catch (Budget.Exceeded e) {
+            error(e.getMessage());
+        }
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
     }
-    
-    private static void run(String source, String stylePath, String outputPath) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        
+
+    // The pipeline writes before the whole source is parsed, so it writes to a
+    // partial file that replaces the output only if there were no errors,
+    // as run leaves the output alone when there are.
+    private static void pipelineFile(Options options) throws IOException {
+        Budget budget = Budget.start(options, null);
+        Path output = Paths.get(options.outputPath);
+        Path partial = output.resolveSibling(output.getFileName() + ".partial");
+
+        try {
+            try (Reader reader = openInput(options.inputPath, budget);
+                    Writer writer = new BufferedWriter(new FileWriter(partial.toFile()))) {
+                new Pipeline(options).run(reader, writer);
+            } catch (Budget.Exceeded e) {
+                error(e.getMessage());
+            }
+
+            if (!hadError) Files.move(partial, output, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+
+        if (hadError) System.exit(65);
+        if (hadRuntimeError) System.exit(70);
+    }
+
+    private static void run(String source, Options options) throws IOException {
+        List<Expr> expressions = parse(source, options);
+        if (hadError) return;
+
+        if (options.paginateLevel > 0) {
+            new Paginator(options).write(expressions);
+            return;
+        }
+
+        if (options.targets.size() > 1 || !options.targets.get(0).equals("html")) {
+            Renderer.renderAll(expressions, options);
+            return;
+        }
+
+        if (options.packPath != null) {
+            String name = Paths.get(options.outputPath).getFileName().toString();
+            Pack.Builder pack = new Pack.Builder(Paths.get(options.packPath), List.of(name), name);
+            try {
+                pack.add(name, writer -> format(expressions, options, writer));
+                pack.finish();
+            } catch (IOException | RuntimeException e) {
+                pack.abandon();
+                throw e;
+            }
+            return;
+        }
+
+        // A compilation abandoned while formatting, as over its budget, leaves
+        // the output as it was rather than cut short.
+        Path output = Paths.get(options.outputPath);
+        Path partial = output.resolveSibling(output.getFileName() + ".partial");
+        try {
+            try (Writer writer = new BufferedWriter(new FileWriter(partial.toFile()))) {
+                format(expressions, options, writer);
+            }
+            Files.move(partial, output, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    static List<Expr> parse(String source, Options options) {
+        Metrics.document();
+        long start = System.nanoTime();
+
+        List<Token> tokens = new Scanner(source).scanTokens();
+        start = Metrics.phase(Metrics.Phase.SCAN, start);
+
         Parser parser = new Parser(tokens);
+        if (options.intern) parser.intern();
+
         List<Expr> expressions = parser.parse();
-        if (hadError) return;
-        
-        Translator translator = new Translator(expressions);
+        Metrics.phase(Metrics.Phase.PARSE, start);
+        return expressions;
+    }
+
+    static void format(List<Expr> expressions, Options options, Writer writer) throws IOException {
+        long start = System.nanoTime();
+
+        Translator translator = new Translator(expressions, options);
         List<String> tags = translator.translate();
-        
-        Formatter formatter = new Formatter();
-        formatter.write(tags, outputPath, stylePath);
+        start = Metrics.phase(Metrics.Phase.TRANSLATE, start);
+
+        Formatter formatter = new Formatter(writer, options);
+        formatter.begin("Output", List.of(), tags);
+        formatter.append(tags);
+        formatter.finish(translator.features);
+        Metrics.phase(Metrics.Phase.FORMAT, start);
+        translator.reportLinks();
+    }
+
+    // Translates and writes each top-level expression as soon as it is parsed,
+    // so only the expression being compiled is held in memory. Output already
+    // written cannot be taken back: after the first error the rest of the
+    // source is only parsed, to report every error.
+    static void stream(Reader reader, Writer writer, Options options) throws IOException {
+        Metrics.document();
+        long start = System.nanoTime();
+
+        Parser parser = new Parser(new Scanner(reader));
+        Translator translator = new Translator(options);
+        Formatter formatter = new Formatter(writer, options);
+
+        formatter.begin("Output", List.of());
+        while (parser.hasNext()) {
+            Expr expr = parser.next();
+            if (hadError || expr == null) continue;
+
+            translator.translate(expr, tags -> {
+                try {
+                    formatter.append(tags);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        formatter.finish(translator.features);
+        Metrics.phase(Metrics.Phase.COMPILE, start);
+        translator.reportLinks();
+    }
+
+    private static Reader openInput(String path, Budget budget) throws IOException {
+        InputStream in = path.equals(Options.STANDARD_STREAM) ? System.in : new FileInputStream(path);
+        return new InputStreamReader(budget.input(in), Charset.defaultCharset());
+    }
+
+    private static Writer openOutput(String path) throws IOException {
+        if (path.equals(Options.STANDARD_STREAM)) {
+            return new BufferedWriter(new OutputStreamWriter(System.out, Charset.defaultCharset()));
+        }
+        return new BufferedWriter(new FileWriter(path));
     }
-    
+
     static void error(int line, String message) {
         report(line, "", message);
     }
 
+    // An error of the compilation as a whole rather than of a line.
+    static void error(String message) {
+        report("Error: " + message);
+    }
+
+    // The list collecting the current thread's errors, if any.
+    static List<String> collecting() {
+        return collected.get();
+    }
+
+    // While set, errors of the current thread's compilation are added to the
+    // list instead of being printed, as the daemon does for each request.
+    // Returns the list collecting before, to be restored afterwards.
+    static List<String> collect(List<String> diagnostics) {
+        List<String> previous = collected.get();
+
+        if (diagnostics == null) {
+            collected.remove();
+        } else {
+            collected.set(diagnostics);
+        }
+
+        return previous;
+    }
+
     private static void report(int line, String where, String message) {
-        System.err.println("[line " + line + "] Error" + where + ": " + message);
+        report("[line " + line + "] Error" + where + ": " + message);
+    }
+
+    private static void report(String error) {
+        List<String> diagnostics = collected.get();
+        Metrics.error();
+
+        if (diagnostics != null) {
+            diagnostics.add(error);
+            return;
+        }
+
+        System.err.println(error);
         hadError = true;
     }
-  
+
     static void error(Token token, String message) {
         if (token.type == TokenType.EOF) {
             report(token.line, " at end", message);
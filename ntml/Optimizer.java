@@ -0,0 +1,259 @@
+package ntml;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Rewrites a tree into a smaller one that renders the same, before it is
+// translated:
+//  - groupings, which add no markup, are spliced into the sequence holding
+//    them, or replaced by their only child where a single node is expected;
+//  - adjacent texts are joined by a space, which is what the line break
+//    between them renders as. Texts holding markup are left alone, as a
+//    <pre> among them would show the difference;
+//  - runs of definitions become one definition list instead of a <dl> each;
+//  - empty texts and empty groupings are dropped.
+//
+// The tree is walked with a stack of its own, as in the translator, so any
+// nesting depth fits. A subtree shared by interning is rewritten once and
+// stays shared. Tables whose rows are still being parsed are left as they
+// are, so streaming never holds a whole table.
+class Optimizer {
+    // A container with its children rewritten so far.
+    private static class Frame {
+        final Expr expr;
+        final List<? extends Expr> children;
+        final List<Expr> done = new ArrayList<>();
+
+        Frame(Expr expr, List<? extends Expr> children) {
+            this.expr = expr;
+            this.children = children;
+        }
+    }
+
+    // Only kept for interned trees, the only ones with shared subtrees.
+    private final Map<Expr, Expr> rewritten;
+
+    private Optimizer(boolean shared) {
+        this.rewritten = shared ? new IdentityHashMap<>() : null;
+    }
+
+    static List<Expr> optimize(List<Expr> expressions, boolean shared) {
+        Optimizer optimizer = new Optimizer(shared);
+        List<Expr> children = new ArrayList<>();
+
+        for (Expr expr : expressions) {
+            if (expr != null) children.add(optimizer.rewrite(expr));
+        }
+
+        return sequence(children);
+    }
+
+    static Expr optimize(Expr expr) {
+        return expr == null ? null : new Optimizer(false).rewrite(expr);
+    }
+
+    private Expr rewrite(Expr root) {
+        Deque<Frame> stack = new ArrayDeque<>();
+        Expr result = enter(root, stack);
+
+        while (!stack.isEmpty()) {
+            Frame frame = stack.peek();
+
+            if (result != null) {
+                frame.done.add(result);
+                result = null;
+            }
+
+            if (frame.done.size() < frame.children.size()) {
+                result = enter(frame.children.get(frame.done.size()), stack);
+            } else {
+                stack.pop();
+                result = rebuild(frame.expr, frame.done);
+                if (rewritten != null) rewritten.put(frame.expr, result);
+            }
+        }
+
+        return result;
+    }
+
+    // The node itself if it is a leaf or already rewritten; otherwise null,
+    // after pushing a frame for its children.
+    private Expr enter(Expr expr, Deque<Frame> stack) {
+        Expr done = rewritten != null ? rewritten.get(expr) : null;
+        if (done != null) return done;
+
+        List<? extends Expr> children = children(expr);
+        if (children == null) return expr;
+
+        stack.push(new Frame(expr, children));
+        return null;
+    }
+
+    private static List<? extends Expr> children(Expr expr) {
+        if (expr instanceof Expr.Block block) return block.expressions();
+        if (expr instanceof Expr.Grouping grouping) return grouping.expressions();
+        if (expr instanceof Expr.Listing listing) return listing.items();
+        if (expr instanceof Expr.ListItem item) return List.of(item.item());
+        if (expr instanceof Expr.Cell cell) return List.of(cell.content());
+
+        if (expr instanceof Expr.Table table && table.cells() instanceof List<List<Expr.Cell>> rows) {
+            List<Expr> cells = new ArrayList<>();
+            for (List<Expr.Cell> row : rows) {
+                cells.addAll(row);
+            }
+            return cells;
+        }
+
+        return null;
+    }
+
+    // The container with its rewritten children, or the container itself
+    // when none of them changed.
+    private static Expr rebuild(Expr expr, List<Expr> children) {
+        if (expr instanceof Expr.Block block) {
+            List<Expr> expressions = sequence(children);
+            return same(expressions, block.expressions()) ? block : new Expr.Block(expressions);
+        }
+
+        if (expr instanceof Expr.Grouping grouping) {
+            List<Expr> expressions = sequence(children);
+            return same(expressions, grouping.expressions()) ? grouping : new Expr.Grouping(expressions);
+        }
+
+        if (expr instanceof Expr.Listing listing) {
+            if (same(children, listing.items())) return listing;
+
+            List<Expr.ListItem> items = new ArrayList<>();
+            for (Expr item : children) {
+                items.add((Expr.ListItem)item);
+            }
+            return new Expr.Listing(items, listing.ordered());
+        }
+
+        if (expr instanceof Expr.ListItem item) {
+            Expr.Listable content = single(children.get(0), item.item());
+            return content == item.item() ? item : new Expr.ListItem(content);
+        }
+
+        if (expr instanceof Expr.Cell cell) {
+            Expr.Listable content = single(children.get(0), cell.content());
+            return content == cell.content()
+                    ? cell
+                    : new Expr.Cell(cell.header(), cell.rowSpan(), cell.colSpan(), content);
+        }
+
+        Expr.Table table = (Expr.Table)expr;
+        List<List<Expr.Cell>> rows = new ArrayList<>();
+        boolean changed = false;
+        int next = 0;
+
+        for (List<Expr.Cell> row : table.cells()) {
+            List<Expr.Cell> cells = new ArrayList<>();
+            for (Expr.Cell cell : row) {
+                Expr.Cell done = (Expr.Cell)children.get(next++);
+                changed |= done != cell;
+                cells.add(done);
+            }
+            rows.add(cells);
+        }
+
+        return changed ? new Expr.Table(rows) : table;
+    }
+
+    // Where one node is expected, a grouping of one listable node is that node.
+    // A rewrite that is not listable, which none should be, leaves the
+    // original in place.
+    private static Expr.Listable single(Expr expr, Expr.Listable original) {
+        if (expr instanceof Expr.Grouping grouping && grouping.expressions().size() == 1
+                && grouping.expressions().get(0) instanceof Expr.Listable only) {
+            return only;
+        }
+
+        return expr instanceof Expr.Listable listable ? listable : original;
+    }
+
+    // Splices in groupings, whose children are already rewritten, and joins
+    // runs of texts and of definitions.
+    private static List<Expr> sequence(List<Expr> children) {
+        Sequence sequence = new Sequence();
+
+        for (Expr child : children) {
+            if (child instanceof Expr.Grouping grouping) {
+                for (Expr inner : grouping.expressions()) {
+                    sequence.add(inner);
+                }
+            } else {
+                sequence.add(child);
+            }
+        }
+
+        return sequence.end();
+    }
+
+    private static class Sequence {
+        private final List<Expr> result = new ArrayList<>();
+        private Expr.Text first = null;
+        private StringBuilder text = null;
+        private final List<Expr.Definition> definitions = new ArrayList<>();
+
+        void add(Expr expr) {
+            if (expr instanceof Expr.Text leaf && leaf.content().isEmpty()) return;
+
+            if (expr instanceof Expr.Text leaf && leaf.content().indexOf('<') == -1) {
+                flushDefinitions();
+                if (first == null) {
+                    first = leaf;
+                } else {
+                    if (text == null) text = new StringBuilder(first.content());
+                    text.append(' ').append(leaf.content());
+                }
+                return;
+            }
+
+            flushText();
+            if (expr instanceof Expr.Definition definition) {
+                definitions.add(definition);
+                return;
+            }
+
+            flushDefinitions();
+            result.add(expr);
+        }
+
+        List<Expr> end() {
+            flushText();
+            flushDefinitions();
+            return result;
+        }
+
+        private void flushText() {
+            if (first == null) return;
+
+            result.add(text == null ? first : new Expr.Text(text.toString()));
+            first = null;
+            text = null;
+        }
+
+        private void flushDefinitions() {
+            if (definitions.size() == 1) {
+                result.add(definitions.get(0));
+            } else if (definitions.size() > 1) {
+                result.add(new Expr.DefinitionList(List.copyOf(definitions)));
+            }
+            definitions.clear();
+        }
+    }
+
+    private static boolean same(List<? extends Expr> a, List<? extends Expr> b) {
+        if (a.size() != b.size()) return false;
+
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i)) return false;
+        }
+        return true;
+    }
+}
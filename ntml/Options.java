@@ -0,0 +1,192 @@
+package ntml;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+class Options {
+    static final String STANDARD_STREAM = "-";
+
+    static final String USAGE = String.join("\n",
+        "Usage: ntml [options] [script] [style] [output]",
+        "  -                   read the script from stdin and write to stdout",
+        "  --stream            translate and write one expression at a time",
+        "  --pipeline          scan, parse, translate and write on separate threads",
+        "  --table-chunk=rows  split tables into chunks of rows",
+        "  --paginate[=level]  split into pages at headings up to level (1-3)",
+        "  --intern            share identical subtrees and reuse their output",
+        "  --optimize          simplify the syntax tree before translating it",
+        "  --check-links       report broken link and image targets",
+        "  --check-links=local ... checking local targets only",
+        "  --prune-style       inline only the style rules that match the page",
+        "  --bundle            inline local images, for a self-contained page",
+        "  --template=path     page template with {{title}} {{head}} {{nav}} {{body}}",
+        "  --targets=list      render to any of html,txt,json from one parse; txt and",
+        "                      json are written next to the output, by extension",
+        "  --max-input=bytes   abandon documents longer than this",
+        "  --max-tokens=n      ... with more tokens",
+        "  --max-nodes=n       ... with more syntax tree nodes",
+        "  --max-depth=n       ... nested deeper",
+        "  --max-output=chars  ... with longer output",
+        "  --timeout=ms        ... taking longer to compile",
+        "  --pack=archive      write the pages, with gzip variants, into one archive",
+        "                      under their file names instead of into files",
+        "  --serve=archive     serve a packed site over HTTP",
+        "  --port=n            ... on this port (8080)",
+        "  --daemon=socket     serve compile requests on a Unix domain socket,",
+        "                      within the limits above for every request",
+        "  --connect=socket    compile through the daemon listening on socket");
+
+    enum LinkCheck { NONE, LOCAL, ALL }
+
+    String inputPath = null;
+    String stylePath = "./style.css";
+    String outputPath = "./output.html";
+    String templatePath = null;
+    boolean stream = false;
+    boolean intern = false;
+    boolean pipeline = false;
+    boolean pruneStyle = false;
+    boolean bundle = false;
+    boolean optimize = false;
+    // Renderer names, HTML alone unless asked otherwise.
+    List<String> targets = List.of("html");
+    LinkCheck checkLinks = LinkCheck.NONE;
+    int tableChunkRows = 0;
+    int paginateLevel = 0;
+    String packPath = null;
+    String servePath = null;
+    int port = 8080;
+    String daemonSocket = null;
+    String connectSocket = null;
+    long maxInput = Long.MAX_VALUE;
+    long maxTokens = Long.MAX_VALUE;
+    long maxNodes = Long.MAX_VALUE;
+    long maxDepth = Long.MAX_VALUE;
+    long maxOutput = Long.MAX_VALUE;
+    long timeoutMillis = Long.MAX_VALUE;
+
+    static Options parse(String[] args) {
+        Options options = new Options();
+        List<String> positional = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.equals("--stream")) {
+                options.stream = true;
+            } else if (arg.equals("--pipeline")) {
+                options.pipeline = true;
+            } else if (arg.equals("--check-links")) {
+                options.checkLinks = LinkCheck.ALL;
+            } else if (arg.equals("--check-links=local")) {
+                options.checkLinks = LinkCheck.LOCAL;
+            } else if (arg.equals("--prune-style")) {
+                options.pruneStyle = true;
+            } else if (arg.equals("--bundle")) {
+                options.bundle = true;
+            } else if (arg.equals("--optimize")) {
+                options.optimize = true;
+            } else if (arg.startsWith("--targets=")) {
+                options.targets = List.of(value(arg).split(","));
+                for (String target : options.targets) {
+                    if (Renderer.named(target) == null) return null;
+                }
+            } else if (arg.equals("--intern")) {
+                options.intern = true;
+            } else if (arg.startsWith("--table-chunk=")) {
+                options.tableChunkRows = number(arg);
+                if (options.tableChunkRows < 1) return null;
+            } else if (arg.equals("--paginate")) {
+                options.paginateLevel = 1;
+            } else if (arg.startsWith("--paginate=")) {
+                options.paginateLevel = number(arg);
+                if (options.paginateLevel < 1 || options.paginateLevel > 3) return null;
+            } else if (arg.startsWith("--template=")) {
+                options.templatePath = value(arg);
+            } else if (arg.startsWith("--max-input=")) {
+                if ((options.maxInput = limit(arg)) < 1) return null;
+            } else if (arg.startsWith("--max-tokens=")) {
+                if ((options.maxTokens = limit(arg)) < 1) return null;
+            } else if (arg.startsWith("--max-nodes=")) {
+                if ((options.maxNodes = limit(arg)) < 1) return null;
+            } else if (arg.startsWith("--max-depth=")) {
+                if ((options.maxDepth = limit(arg)) < 1) return null;
+            } else if (arg.startsWith("--max-output=")) {
+                if ((options.maxOutput = limit(arg)) < 1) return null;
+            } else if (arg.startsWith("--timeout=")) {
+                if ((options.timeoutMillis = limit(arg)) < 1) return null;
+            } else if (arg.startsWith("--pack=")) {
+                options.packPath = value(arg);
+            } else if (arg.startsWith("--serve=")) {
+                options.servePath = value(arg);
+            } else if (arg.startsWith("--port=")) {
+                options.port = number(arg);
+                if (options.port < 1 || options.port > 65535) return null;
+            } else if (arg.startsWith("--daemon=")) {
+                options.daemonSocket = value(arg);
+            } else if (arg.startsWith("--connect=")) {
+                options.connectSocket = value(arg);
+            } else if (arg.startsWith("--")) {
+                return null;
+            } else {
+                positional.add(arg);
+            }
+        }
+
+        if (options.daemonSocket != null) return positional.isEmpty() ? options : null;
+        if (options.servePath != null) return positional.isEmpty() ? options : null;
+        if (positional.size() > 3 || positional.size() < 1) return null;
+
+        options.inputPath = positional.get(0);
+        if (positional.size() > 1) options.stylePath = positional.get(1);
+
+        if (positional.size() > 2) {
+            options.outputPath = positional.get(2);
+        } else if (options.inputPath.equals(STANDARD_STREAM)) {
+            options.outputPath = STANDARD_STREAM;
+        }
+
+        if (options.inputPath.equals(STANDARD_STREAM)) options.stream = true;
+        if (options.stream && options.paginateLevel > 0) return null;
+        // Interning keeps every distinct node, which streaming must not.
+        if (options.stream && options.intern) return null;
+        // A pipeline writes as it goes, so it has neither pages nor stdin.
+        if (options.pipeline && (options.stream || options.paginateLevel > 0)) return null;
+        // Other targets need the whole tree, and files of their own.
+        if (!options.targets.equals(List.of("html"))
+                && (options.stream || options.pipeline || options.paginateLevel > 0)) return null;
+        // A pack is written once every page is rendered, and holds HTML only.
+        if (options.packPath != null && (options.stream || options.pipeline
+                || !options.targets.equals(List.of("html")))) return null;
+        // Pruning needs the whole body before the head is written.
+        if (options.pruneStyle && (options.stream || options.pipeline)) return null;
+
+        return options;
+    }
+
+    // Relative links and image sources in the output resolve against this.
+    Path outputDirectory() {
+        Path parent = outputPath.equals(STANDARD_STREAM) ? null : Paths.get(outputPath).getParent();
+        return parent != null ? parent : Paths.get("");
+    }
+
+    private static String value(String arg) {
+        return arg.substring(arg.indexOf('=') + 1);
+    }
+
+    private static int number(String arg) {
+        try {
+            return Integer.parseInt(value(arg));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long limit(String arg) {
+        try {
+            return Long.parseLong(value(arg));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package ntml;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.zip.GZIPOutputStream;
+
+// A whole site in one file: every page, with its gzip variant, behind an
+// index of their paths sorted bytewise. A server maps the index and finds a
+// page with a binary search, then sends it straight from the file, so
+// serving never looks anything up in the filesystem.
+//
+//   header: "NTPK", int version, int count, int root, int index length
+//   slots:  per page, int name offset, int name length, long offset,
+//           int length, long gzip offset, int gzip length
+//   names:  the paths, in UTF-8
+//   bodies: the pages and their gzip variants, in the order written
+//
+// Name offsets count from the start of the names, body offsets from the
+// start of the file. The root is the slot of the page served for "/".
+class Pack {
+    record Entry(long offset, int length, long gzipOffset, int gzipLength) {}
+
+    private static final int MAGIC = 0x4e54504b;
+    private static final int VERSION = 1;
+    private static final int HEADER = 20;
+    private static final int SLOT = 32;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer index;
+    private final int count;
+    private final int root;
+    private final int names;
+
+    private Pack(FileChannel channel, MappedByteBuffer index, int count, int root) {
+        this.channel = channel;
+        this.index = index;
+        this.count = count;
+        this.root = root;
+        this.names = HEADER + count * SLOT;
+    }
+
+    static Pack open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {}
+            header.flip();
+
+            if (header.remaining() < HEADER || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a packed site: " + file);
+            }
+            int count = header.getInt();
+            int root = header.getInt();
+            int length = header.getInt();
+
+            return new Pack(channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, length), count, root);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    // The page at the path, the root for an empty one, or null.
+    Entry find(String path) {
+        if (path.isEmpty()) return count > 0 ? entry(root) : null;
+
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = count - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int order = compare(middle, name);
+
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                return entry(middle);
+            }
+        }
+
+        return null;
+    }
+
+    // Compares the name of the slot with the name, bytewise and unsigned,
+    // reading the mapped index in place.
+    private int compare(int slot, byte[] name) {
+        int at = HEADER + slot * SLOT;
+        int offset = names + index.getInt(at);
+        int length = index.getInt(at + 4);
+
+        for (int i = 0; i < Math.min(length, name.length); i++) {
+            int order = Byte.compareUnsigned(index.get(offset + i), name[i]);
+            if (order != 0) return order;
+        }
+
+        return Integer.compare(length, name.length);
+    }
+
+    private Entry entry(int slot) {
+        int at = HEADER + slot * SLOT;
+        return new Entry(index.getLong(at + 8), index.getInt(at + 16), index.getLong(at + 20), index.getInt(at + 28));
+    }
+
+    // Writes a packed site. The paths are known up front, so the index is
+    // sized before any page is rendered; pages may then be added from any
+    // thread, in any order, and go to the file as they come. The archive is
+    // written beside its path and only moved there once complete.
+    static class Builder {
+        private final Path file;
+        private final Path partial;
+        private final FileChannel channel;
+        private final byte[][] names;
+        private final ByteBuffer index;
+        private final boolean[] added;
+        private long end;
+
+        Builder(Path file, Collection<String> paths, String root) throws IOException {
+            this.file = file;
+            this.partial = file.resolveSibling(file.getFileName() + ".partial");
+
+            names = new byte[paths.size()][];
+            int i = 0;
+            for (String path : paths) {
+                names[i++] = path.getBytes(StandardCharsets.UTF_8);
+            }
+            Arrays.sort(names, Arrays::compareUnsigned);
+
+            int length = HEADER + names.length * SLOT;
+            for (byte[] name : names) {
+                length += name.length;
+            }
+
+            index = ByteBuffer.allocate(length);
+            index.putInt(MAGIC).putInt(VERSION).putInt(names.length).putInt(slot(root)).putInt(length);
+            int offset = 0;
+            for (byte[] name : names) {
+                index.putInt(offset).putInt(name.length).putLong(0).putInt(0).putLong(0).putInt(0);
+                offset += name.length;
+            }
+            for (byte[] name : names) {
+                index.put(name);
+            }
+
+            added = new boolean[names.length];
+            end = length;
+            channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        interface Page {
+            void write(Writer writer) throws IOException;
+        }
+
+        // Renders the page in the platform charset, as it would be written
+        // to a file of its own.
+        void add(String path, Page page) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(bytes, Charset.defaultCharset()))) {
+                page.write(writer);
+            }
+            add(path, bytes.toByteArray());
+        }
+
+        // Compresses on the calling thread; only the writes are serialized.
+        void add(String path, byte[] body) throws IOException {
+            int slot = slot(path);
+            byte[] gzip = gzip(body);
+
+            synchronized (this) {
+                if (added[slot]) throw new IllegalStateException("Added twice: " + path);
+                added[slot] = true;
+
+                int at = HEADER + slot * SLOT;
+                index.putLong(at + 8, end).putInt(at + 16, body.length);
+                end = write(body, end);
+                index.putLong(at + 20, end).putInt(at + 28, gzip.length);
+                end = write(gzip, end);
+            }
+        }
+
+        // Writes the index and puts the archive in place. Pages never added
+        // are a bug of the caller, and leave no archive.
+        void finish() throws IOException {
+            try {
+                for (int slot = 0; slot < added.length; slot++) {
+                    if (!added[slot]) {
+                        throw new IllegalStateException("Never added: " + new String(names[slot], StandardCharsets.UTF_8));
+                    }
+                }
+
+                write(index.array(), 0);
+                channel.force(false);
+                channel.close();
+                Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                abandon();
+            }
+        }
+
+        // Drops the partial archive, as when the build fails.
+        void abandon() throws IOException {
+            channel.close();
+            Files.deleteIfExists(partial);
+        }
+
+        private long write(byte[] bytes, long position) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            return position;
+        }
+
+        private int slot(String path) {
+            int slot = Arrays.binarySearch(names, path.getBytes(StandardCharsets.UTF_8), Arrays::compareUnsigned);
+            if (slot < 0) throw new IllegalArgumentException("Not in the index: " + path);
+            return slot;
+        }
+
+        private static byte[] gzip(byte[] body) throws IOException {
+            ByteArrayOutputStream result = new ByteArrayOutputStream(body.length / 4 + 64);
+            try (GZIPOutputStream out = new GZIPOutputStream(result)) {
+                out.write(body);
+            }
+            return result.toByteArray();
+        }
+    }
+}
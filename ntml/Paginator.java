@@ -0,0 +1,160 @@
+package ntml;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+// Splits a document into pages at top-level headings, so the browser only
+// loads one section at a time. Every page links to its neighbours and to an
+// index page, which is written at the output path; the pages are written
+// next to it, in parallel.
+class Paginator {
+    private static class Page {
+        final String title;
+        final List<Expr> expressions = new ArrayList<>();
+        String file;
+
+        Page(String title) {
+            this.title = title;
+        }
+    }
+
+    private final Options options;
+    private final List<Page> pages = new ArrayList<>();
+
+    Paginator(Options options) {
+        this.options = options;
+    }
+
+    void write(List<Expr> expressions) throws IOException {
+        split(expressions);
+
+        Path output = Paths.get(options.outputPath);
+        String name = output.getFileName().toString();
+        String base = name.endsWith(".html") ? name.substring(0, name.length() - 5) : name;
+
+        for (int i = 0; i < pages.size(); i++) {
+            pages.get(i).file = base + "-" + (i + 1) + ".html";
+        }
+
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < pages.size(); i++) indices.add(i);
+
+        Pack.Builder pack = null;
+        if (options.packPath != null) {
+            List<String> files = new ArrayList<>();
+            for (Page page : pages) files.add(page.file);
+            files.add(name);
+            pack = new Pack.Builder(Paths.get(options.packPath), files, name);
+        }
+        Pack.Builder into = pack;
+        Budget budget = Budget.current();
+        List<String> diagnostics = Ntml.collecting();
+
+        try {
+            // The pages are rendered on pooled threads, which take on the
+            // compilation's budget and collector for each page and then give
+            // back their own.
+            indices.parallelStream().forEach(i -> {
+                Budget previousBudget = Budget.use(budget);
+                List<String> previousDiagnostics = Ntml.collect(diagnostics);
+                try {
+                    Page page = pages.get(i);
+                    Translator translator = new Translator(page.expressions, options);
+
+                    List<String> tags = translator.translate();
+
+                    write(page.title, navigation(i, name), tags, translator.features, output.resolveSibling(page.file), into);
+                    translator.reportLinks();
+                } finally {
+                    Budget.use(previousBudget);
+                    Ntml.collect(previousDiagnostics);
+                }
+            });
+
+            write("Index", List.of(), index(), EnumSet.noneOf(Feature.class), output, into);
+            if (pack != null) pack.finish();
+        } catch (IOException | RuntimeException e) {
+            if (pack != null) pack.abandon();
+            throw e;
+        }
+    }
+
+    // To a file of its own, or with a pack into the pack, under its name.
+    private void write(String title, List<String> navigation, List<String> tags, Set<Feature> features,
+                       Path file, Pack.Builder pack) {
+        if (pack == null) {
+            Formatter.write(title, navigation, tags, features, file.toString(), options);
+            return;
+        }
+
+        try {
+            pack.add(file.getFileName().toString(),
+                    writer -> Formatter.write(title, navigation, tags, features, writer, options));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void split(List<Expr> expressions) {
+        Page page = null;
+
+        for (Expr expr : expressions) {
+            String heading = heading(expr);
+
+            if (heading != null) {
+                page = new Page(heading);
+                pages.add(page);
+            } else if (page == null) {
+                page = new Page("Output");
+                pages.add(page);
+            }
+
+            page.expressions.add(expr);
+        }
+    }
+
+    private String heading(Expr expr) {
+        int level = options.paginateLevel;
+
+        if (expr instanceof Expr.Title title) return title.text();
+        if (level >= 2 && expr instanceof Expr.Subtitle subtitle) return subtitle.text();
+        if (level >= 3 && expr instanceof Expr.Caption caption) return caption.text();
+        return null;
+    }
+
+    private List<String> navigation(int i, String index) {
+        List<String> result = new ArrayList<>();
+
+        result.add("<nav>");
+        if (i > 0) {
+            result.add("<a href=\"" + pages.get(i - 1).file + "\">&larr; " + pages.get(i - 1).title + "</a>");
+        }
+        result.add("<a href=\"" + index + "\">Index</a>");
+        if (i < pages.size() - 1) {
+            result.add("<a href=\"" + pages.get(i + 1).file + "\">" + pages.get(i + 1).title + " &rarr;</a>");
+        }
+        result.add("</nav>");
+
+        return result;
+    }
+
+    private List<String> index() {
+        List<String> result = new ArrayList<>();
+
+        result.add("<ol>");
+        for (Page page : pages) {
+            result.add("<li>");
+            result.add("<a href=\"" + page.file + "\">" + page.title + "</a>");
+            result.add("</li>");
+        }
+        result.add("</ol>");
+
+        return result;
+    }
+}
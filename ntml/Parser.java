@@ -1,112 +1,489 @@
 package ntml;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Supplier;
 
 import static ntml.TokenType.*;
 
 class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
-    private int current = 0;
+    // The tokens an expression can start with.
+    private static final Set<TokenType> STARTERS = EnumSet.of(
+        STRING, CODE, MATH, HASH, DOUBLE_HASH, TRIPLE_HASH, ANGLE_RIGHT, ANGLE_LEFT,
+        PAREN_LEFT, BRACE_LEFT, BRACKET_LEFT, DOUBLE_HYPHEN, SEMICOLON,
+        DOUBLE_PAREN_LEFT, DOUBLE_BRACKET_LEFT, DOUBLE_PIPE);
+
+    private final Supplier<Token> tokens;
+    private final Budget budget = Budget.current();
+    private long nodes = 0;
+    private Token previous = null;
+    private Token next;
+    private long consumed = 0;
+    private RowStream streamed = null;
+    private Map<Object, Expr> interned = null;
 
     Parser(List<Token> tokens) {
+        this(tokens.iterator()::next);
+    }
+
+    Parser(Scanner scanner) {
+        this(scanner::nextToken);
+    }
+
+    Parser(Supplier<Token> tokens) {
         this.tokens = tokens;
+        this.next = tokens.get();
+    }
+  
+    // From now on, structurally identical nodes are parsed into one shared
+    // instance. Nodes are immutable once built, so sharing them is safe.
+    Parser intern() {
+        interned = new HashMap<>();
+        return this;
     }
   
     List<Expr> parse() {
         List<Expr> expressions = new ArrayList<>();
         while (!isAtEnd()) {
-            expressions.add(expression());
+            Expr expr = expression();
+            if (expr != null) expressions.add(expr);
         }
 
         return expressions;
     }
+
+    boolean hasNext() {
+        return !isAtEnd();
+    }
+
+    // Unlike parse, tables at top level come back with their rows still in
+    // the token stream: see RowStream. Returns null for an expression that
+    // had errors.
+    Expr next() {
+        if (streamed != null) {
+            streamed.skip();
+            streamed = null;
+        }
+        
+        if (match(DOUBLE_PIPE)) {
+            streamed = new RowStream();
+            return new Expr.Table(streamed);
+        }
+        
+        return expression();
+    }
     
+    // The next top-level expression, tables included, parsed whole. Returns
+    // null for an expression that had errors.
+    Expr nextExpression() {
+        return expression();
+    }
+
+    // Nested structures are parsed with an explicit stack of open
+    // structures instead of recursion, so the nesting depth of a document is
+    // bounded by the heap rather than by the call stack.
     private Expr expression() {
+        return expression(new ArrayDeque<>());
+    }
+    
+    // The stack may already hold structures the expression belongs to, as
+    // for the cells of a streamed table. On an error the expression and all
+    // of them are dropped: the stack is left empty and null returned.
+    private Expr expression(Deque<Nested> stack) {
+        int floor = stack.size();
+        long start = consumed;
+        
         try {
-            if (check(STRING)) return new Expr.Text(text());
-            if (check(CODE)) return new Expr.Code(code());
-            if (check(MATH)) return new Expr.Math(math());
-
-            if (match(HASH)) return new Expr.Title(text());
-            if (match(DOUBLE_HASH)) return new Expr.Subtitle(text());
-            if (match(TRIPLE_HASH)) return new Expr.Caption(text());
-            if (match(ANGLE_RIGHT)) return new Expr.Paragraph(text());
-            
-            if (match(PAREN_LEFT)) return grouping();
-            if (match(BRACE_LEFT)) return new Expr.Block(block());
+            Expr result = primary(stack);
             
-            if (match(DOUBLE_HYPHEN)) return new Expr.HorizontalLine();
-            
-            if (match(BRACKET_LEFT)) return list();
-            if (match(SEMICOLON)) return def();
-            if (match(DOUBLE_PAREN_LEFT)) return link();
-            if (match(DOUBLE_BRACKET_LEFT)) return img();
-            if (match(DOUBLE_PIPE)) return table();
+            while (stack.size() > floor) {
+                Nested nested = stack.peek();
+                if (result != OPENED) nested.add(intern(result));
+                
+                if (nested.next()) {
+                    result = primary(stack);
+                    continue;
+                }
+                
+                result = nested.end();
+                stack.pop();
+            }
             
-            return null;
+            return intern(result);
         } catch (ParseError error) {
+            if (consumed == start) advance();
+            synchronize(stack);
             return null;
         }
     }
     
-    private Expr.Table table() {
-        List<List<Expr.Cell>> rows = new ArrayList<>();
-        boolean header = false;
-        int rowSpan;
-        int colSpan;
-                    
-        while(!check(DOUBLE_PIPE) && !isAtEnd()) {
-            if (match(PIPE_HYPHEN)) {
-                List<Expr.Cell> row = new ArrayList<>();
+    // Panic mode: skips the rest of every structure still open, then
+    // anything that cannot start an expression. Only the first error of an
+    // expression is reported, and every token is skipped at most once, so
+    // parsing takes linear time whatever the input.
+    private void synchronize(Deque<Nested> stack) {
+        Deque<TokenType> closers = new ArrayDeque<>();
+        for (Nested nested : stack) {
+            closers.addLast(nested.closing());
+        }
+        stack.clear();
+        
+        while (!isAtEnd()) {
+            TokenType type = peek().type;
+            
+            if (closers.isEmpty()) {
+                if (STARTERS.contains(type)) return;
+            } else if (type == closers.peek()) {
+                closers.pop();
+            } else if (type == DOUBLE_PIPE) {
+                closers.push(DOUBLE_PIPE);
+            } else if (type == BRACE_LEFT) {
+                closers.push(BRACE_RIGHT);
+            } else if (type == PAREN_LEFT) {
+                closers.push(PAREN_RIGHT);
+            } else if (type == BRACKET_LEFT) {
+                closers.push(BRACKET_RIGHT);
+            }
+            
+            advance();
+        }
+    }
+    
+    // Every node goes through here once built, so nodes are also counted
+    // here. Children are interned before their parent, so two nodes are
+    // identical when their classes and fields are equal, comparing children
+    // by identity.
+    private <T extends Expr> T intern(T expr) {
+        if (expr == null || expr == OPENED) return expr;
+        
+        budget.nodes(++nodes);
+        if (interned == null) return expr;
+        
+        @SuppressWarnings("unchecked")
+        T shared = (T)interned.putIfAbsent(key(expr), expr);
+        return shared != null ? shared : expr;
+    }
+    
+    // A leaf is its own key, as records are equal when their fields are.
+    // The record equality of a node with children would compare the whole
+    // subtree, so they are keyed on the identity of their children instead.
+    private static Object key(Expr expr) {
+        if (expr instanceof Expr.Block block) {
+            return List.of(Expr.Block.class, same(block.expressions()));
+        } else if (expr instanceof Expr.Grouping grouping) {
+            return List.of(Expr.Grouping.class, same(grouping.expressions()));
+        } else if (expr instanceof Expr.Listing listing) {
+            return List.of(Expr.Listing.class, same(listing.items()), listing.ordered());
+        } else if (expr instanceof Expr.ListItem item) {
+            return List.of(Expr.ListItem.class, new Same(item.item()));
+        } else if (expr instanceof Expr.Cell cell) {
+            return List.of(Expr.Cell.class, cell.header(), cell.rowSpan(), cell.colSpan(), new Same(cell.content()));
+        } else if (expr instanceof Expr.Table table) {
+            List<Object> rows = new ArrayList<>();
+            for (List<Expr.Cell> row : table.cells()) {
+                rows.add(same(row));
+            }
+            return List.of(Expr.Table.class, rows);
+        }
+        
+        return expr;
+    }
+    
+    private static List<Same> same(List<? extends Expr> children) {
+        List<Same> result = new ArrayList<>(children.size());
+        for (Expr child : children) {
+            result.add(new Same(child));
+        }
+        return result;
+    }
+    
+    private record Same(Expr expr) {
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Same same && same.expr == expr;
+        }
+        
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(expr);
+        }
+    }
+    
+    private Expr primary(Deque<Nested> stack) {
+        if (check(STRING)) return new Expr.Text(text());
+        if (check(CODE)) return code();
+        if (check(MATH)) return new Expr.Math(math());
+
+        if (match(HASH)) return new Expr.Title(text());
+        if (match(DOUBLE_HASH)) return new Expr.Subtitle(text());
+        if (match(TRIPLE_HASH)) return new Expr.Caption(text());
+        if (match(ANGLE_RIGHT)) return new Expr.Paragraph(text());
+        
+        if (match(PAREN_LEFT)) return open(stack, new Sequence(PAREN_RIGHT));
+        if (match(BRACE_LEFT)) return open(stack, new Sequence(BRACE_RIGHT));
+        
+        if (match(DOUBLE_HYPHEN)) return new Expr.HorizontalLine();
+        
+        if (match(BRACKET_LEFT)) return open(stack, new Listing());
+        if (match(SEMICOLON)) return def();
+        if (match(DOUBLE_PAREN_LEFT)) return link();
+        if (match(DOUBLE_BRACKET_LEFT)) return img();
+        if (match(DOUBLE_PIPE)) return open(stack, new Table());
+        if (match(ANGLE_LEFT)) return include();
+        
+        throw error(peek(), "Expect expression.");
+    }
+    
+    private Expr open(Deque<Nested> stack, Nested nested) {
+        budget.depth(stack.size() + 1);
+        stack.push(nested);
+        return OPENED;
+    }
+    
+    // Marks that primary opened a nested structure instead of returning a node.
+    private static final Expr OPENED = new Expr.HorizontalLine();
+    
+    private abstract class Nested {
+        // Parses up to the next inner expression; false once the structure
+        // has no more of them.
+        abstract boolean next();
+        
+        abstract void add(Expr expr);
+        
+        abstract Expr end();
+        
+        // The token that ends the structure.
+        abstract TokenType closing();
+    }
+    
+    private class Sequence extends Nested {
+        private final TokenType closing;
+        private final List<Expr> expressions = new ArrayList<>();
+        
+        Sequence(TokenType closing) {
+            this.closing = closing;
+        }
+        
+        @Override
+        boolean next() {
+            return !check(closing) && !isAtEnd();
+        }
+        
+        @Override
+        TokenType closing() {
+            return closing;
+        }
+        
+        @Override
+        void add(Expr expr) {
+            if (expr != null) expressions.add(expr);
+        }
+        
+        @Override
+        Expr end() {
+            if (closing == BRACE_RIGHT) {
+                consume(BRACE_RIGHT, "Expect '}' after block.");
+                return new Expr.Block(expressions);
+            }
+            
+            consume(PAREN_RIGHT, "Expect ')' after grouping.");
+            return new Expr.Grouping(expressions);
+        }
+    }
+    
+    private class Listing extends Nested {
+        private final boolean ordered = check(STAR);
+        private final List<Expr.ListItem> items = new ArrayList<>();
+        
+        @Override
+        boolean next() {
+            while (!check(BRACKET_RIGHT) && !isAtEnd()) {
+                if (match(ordered ? STAR : PLUS)) return true;
                 
-                while (!check(DOUBLE_PIPE) && !check(PIPE_HYPHEN) && !isAtEnd()) {
-                    rowSpan = 1;
-                    colSpan = 1;
-                    
-                    if (match(BANG)) {
-                        header = true;
-                    } else if (match(PIPE)) {
-                        header = false;
-                    } else {
-                        error(peek(), "Expect either !, | or |-.");
-                    }
-                    
-                    while((check(UNDERSCORE) || check(ANGLE_RIGHT)) && !isAtEnd()) {
-                        if (match(UNDERSCORE)) {
-                            rowSpan++;
-                        } else if (match(ANGLE_RIGHT)) {
-                            colSpan++;
-                        } else {
-                            error(peek(), "Expect either _ or >.");
-                        }
+                throw error(peek(), "Expect either + or *");
+            }
+            
+            return false;
+        }
+        
+        @Override
+        TokenType closing() {
+            return BRACKET_RIGHT;
+        }
+        
+        @Override
+        void add(Expr expr) {
+            if (!(expr instanceof Expr.Listable listable)) {
+                error(previous(), " Expect listable expression.");
+                return;
+            }
+            
+            items.add(intern(new Expr.ListItem(listable)));
+        }
+        
+        @Override
+        Expr end() {
+            if (peek().type != EOF) consume(BRACKET_RIGHT, "Expect ].");
+            return new Expr.Listing(items, ordered);
+        }
+    }
+    
+    private class Table extends Nested {
+        private final List<List<Expr.Cell>> rows = new ArrayList<>();
+        private List<Expr.Cell> row = null;
+        private boolean header = false;
+        private int rowSpan;
+        private int colSpan;
+        
+        @Override
+        boolean next() {
+            while (true) {
+                if (row != null) {
+                    if (!check(DOUBLE_PIPE) && !check(PIPE_HYPHEN) && !isAtEnd()) {
+                        if (cell()) return true;
+                        continue;
                     }
                     
-                    if (peek().type != EOF) {
-                        try {
-                            Expr.Listable listable = (Expr.Listable)expression();
-                            row.add(new Expr.Cell(header, rowSpan, colSpan, listable));
-                        } catch (Exception e) {
-                            error(previous(), " Expect listable expression.");
-                        }
-                    }
+                    rows.add(row);
+                    row = null;
                 }
                 
-                rows.add(row);
+                if (check(DOUBLE_PIPE) || isAtEnd()) return false;
+                
+                if (match(PIPE_HYPHEN)) {
+                    row = new ArrayList<>();
+                } else {
+                    throw error(peek(), "Expect |-.");
+                }
+            }
+        }
+        
+        private boolean cell() {
+            rowSpan = 1;
+            colSpan = 1;
+            
+            if (match(BANG)) {
+                header = true;
+            } else if (match(PIPE)) {
+                header = false;
             } else {
-                error(peek(), "Expect |-.");
+                throw error(peek(), "Expect either !, | or |-.");
             }
+            
+            while((check(UNDERSCORE) || check(ANGLE_RIGHT)) && !isAtEnd()) {
+                if (match(UNDERSCORE)) {
+                    rowSpan++;
+                } else if (match(ANGLE_RIGHT)) {
+                    colSpan++;
+                } else {
+                    error(peek(), "Expect either _ or >.");
+                }
+            }
+            
+            return peek().type != EOF;
         }
+        
+        @Override
+        TokenType closing() {
+            return DOUBLE_PIPE;
+        }
+        
+        @Override
+        void add(Expr expr) {
+            if (!(expr instanceof Expr.Listable listable)) {
+                error(previous(), " Expect listable expression.");
+                return;
+            }
             
-        if (peek().type != EOF) consume(DOUBLE_PIPE, "Expect ||.");
-        return new Expr.Table(rows);
+            row.add(intern(new Expr.Cell(header, rowSpan, colSpan, listable)));
+        }
+        
+        @Override
+        Expr end() {
+            if (peek().type != EOF) consume(DOUBLE_PIPE, "Expect ||.");
+            return new Expr.Table(rows);
+        }
     }
     
-    private String code() {
-        if (check(CODE)) return advance().literal;
-        return "";
+    // Rows of a streamed table are parsed only when the table is iterated,
+    // so the whole table is never held in memory. Whatever the consumer
+    // leaves unread is skipped before the next expression is parsed. The
+    // rows can be iterated once; asking again throws rather than yielding
+    // the rows left, or none.
+    private class RowStream implements Iterable<List<Expr.Cell>>, Iterator<List<Expr.Cell>> {
+        private final Table table = new Table();
+        private boolean closed = false;
+        private boolean iterated = false;
+        
+        private final Deque<Nested> open = new ArrayDeque<>(List.of(table));
+        
+        // After an error the rest of the table is skipped.
+        @Override
+        public boolean hasNext() {
+            while (table.rows.isEmpty() && !closed) {
+                try {
+                    if (table.next()) {
+                        Expr cell = expression(open);
+                        if (open.isEmpty()) {
+                            closed = true;
+                        } else {
+                            table.add(cell);
+                        }
+                    } else {
+                        closed = true;
+                        table.end();
+                    }
+                } catch (ParseError error) {
+                    closed = true;
+                    synchronize(open);
+                }
+            }
+            
+            return !table.rows.isEmpty();
+        }
+        
+        @Override
+        public List<Expr.Cell> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return table.rows.remove(0);
+        }
+        
+        @Override
+        public Iterator<List<Expr.Cell>> iterator() {
+            if (iterated) throw new IllegalStateException("The rows of a streamed table can be read once.");
+            iterated = true;
+            return this;
+        }
+        
+        void skip() {
+            while (hasNext()) next();
+        }
+    }
+    
+    // A first line holding only a language name, as in §java ... §, selects
+    // the highlighter for the rest of the block.
+    private Expr.Code code() {
+        String code = check(CODE) ? advance().literal : "";
+        int newline = code.indexOf('\n');
+        
+        if (newline != -1) {
+            String language = code.substring(0, newline).trim();
+            if (Highlighter.supports(language)) {
+                return new Expr.Code(code.substring(newline + 1), language);
+            }
+        }
+        
+        return new Expr.Code(code);
     }
     
     private String math() {
@@ -146,25 +523,15 @@ class Parser {
         return link;
     }
     
-    private Expr.Listing list() {
-        boolean ordered = false;
-        
-        List<Expr.ListItem> items = new ArrayList<>();
+    // < "file.ntml" includes a whole file, < "file.ntml#Heading" only the
+    // section under that heading.
+    private Expr.Include include() {
+        Token target = consume(STRING, "Expect path after <.");
+        String path = target.literal;
+        int hash = path.indexOf('#');
         
-        if (check(STAR)) {
-            ordered = true;
-        }
-        
-        while (!check(BRACKET_RIGHT) && !isAtEnd()) {
-            if (match(ordered ? STAR : PLUS)) {
-                items.add(listItem());
-            } else {
-                error(peek(), "Expect either + or *");
-            }
-        }
-        
-        if (peek().type != EOF) consume(BRACKET_RIGHT, "Expect ].");
-        return new Expr.Listing(items, ordered);
+        if (hash == -1) return new Expr.Include(path, null, target.line);
+        return new Expr.Include(path.substring(0, hash), path.substring(hash + 1), target.line);
     }
     
     private Expr.Definition def() {
@@ -179,46 +546,11 @@ class Parser {
         return new Expr.Definition(word, definitions);
     }
     
-    private Expr.ListItem listItem() {
-        Expr.ListItem li = null;
-        
-        try {
-            Expr.Listable listable = (Expr.Listable)expression();
-            li = new Expr.ListItem(listable);
-        } catch (Exception e) {
-            error(previous(), " Expect listable expression.");
-        }
-        
-        return li;
-    }
-    
     private String text() {
         if(check(STRING)) return advance().literal;
         return "";
     }
     
-    private List<Expr> block() {
-        List<Expr> expressions = new ArrayList<>();
-
-        while (!check(BRACE_RIGHT) && !isAtEnd()) {
-           expressions.add(expression());
-        }
-
-        consume(BRACE_RIGHT, "Expect '}' after block.");
-        return expressions;
-    }
-
-    private Expr.Grouping grouping() {
-        List<Expr> expressions = new ArrayList<>();
-
-        while (!check(PAREN_RIGHT) && !isAtEnd()) {
-            expressions.add(expression());
-        }
-
-        consume(PAREN_RIGHT, "Expect ')' after grouping.");
-        return new Expr.Grouping(expressions);
-    }
-  
     private boolean match(TokenType... types) {
         for (TokenType type : types) {
             if (check(type)) {
@@ -242,7 +574,11 @@ class Parser {
     }
   
     private Token advance() {
-        if (!isAtEnd()) current++;
+        if (!isAtEnd()) {
+            consumed++;
+            previous = next;
+            next = tokens.get();
+        }
         return previous();
     }
   
@@ -251,11 +587,11 @@ class Parser {
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return next;
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
     
     private ParseError error(Token token, String message) {
@@ -0,0 +1,182 @@
+package ntml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Parses random sequences of tokens, both whole and streamed, and fails when
+// a parse does not finish in time or leaves a null in the tree. It then
+// parses documents of growing size and fails when the time per token grows
+// with the size, which error recovery that stops making progress would do.
+//
+//   java ntml.ParserFuzz [--runs=1000] [--seed=n] [--tokens=200]
+class ParserFuzz {
+    private static final String[] LEXEMES = {
+        "(", ")", "{", "}", "[", "]", ">", "<", "[[", "]]", "((", "))", "+", ";", "#", "##",
+        "###", "*", ":", "!", "-", "_", "\\", "/", "|-", "--", "\\\\", "|", "||",
+        "\"text\"", "$x^2$", "§code§", "\n\n"
+    };
+    private static final long TIMEOUT_MILLIS = 5_000;
+    private static final int[] SIZES = { 10_000, 40_000, 160_000, 640_000 };
+    // Allowed growth of the time per token from the smallest size to the largest.
+    private static final double SLACK = 4;
+
+    public static void main(String[] args) throws Exception {
+        int runs = 1000;
+        long seed = System.nanoTime();
+        int tokens = 200;
+
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+
+            if (arg.startsWith("--runs=")) {
+                runs = Integer.parseInt(value);
+            } else if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(value);
+            } else if (arg.startsWith("--tokens=")) {
+                tokens = Integer.parseInt(value);
+            } else {
+                System.out.println("Usage: java ntml.ParserFuzz [--runs=n] [--seed=n] [--tokens=n]");
+                System.exit(64);
+            }
+        }
+
+        ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            Random random = new Random(seed);
+            for (int i = 0; i < runs; i++) {
+                String source = document(random, 1 + random.nextInt(tokens));
+                String failure = check(executor, source);
+
+                if (failure != null) {
+                    System.err.println("Run " + i + " of seed " + seed + ": " + failure);
+                    System.err.println(source);
+                    System.exit(1);
+                }
+            }
+            System.out.println(runs + " random documents parsed, seed " + seed);
+
+            if (!scales(new Random(seed))) System.exit(1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static String document(Random random, int tokens) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < tokens; i++) {
+            source.append(LEXEMES[random.nextInt(LEXEMES.length)]).append(' ');
+        }
+        return source.toString();
+    }
+
+    private static String check(ExecutorService executor, String source) throws Exception {
+        Future<String> result = executor.submit(() -> {
+            List<String> errors = new ArrayList<>();
+            Ntml.collect(errors);
+
+            try {
+                for (Expr expr : new Parser(new Scanner(source).scanTokens()).parse()) {
+                    if (hasNull(expr)) return "null in the parsed tree";
+                }
+
+                Parser streamed = new Parser(new Scanner(source));
+                while (streamed.hasNext()) {
+                    Expr expr = streamed.next();
+                    if (expr instanceof Expr.Table table) {
+                        for (List<Expr.Cell> row : table.cells()) {
+                            if (row.contains(null)) return "null in a streamed row";
+                        }
+                    }
+                }
+
+                return null;
+            } finally {
+                Ntml.collect(null);
+            }
+        });
+
+        try {
+            return result.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            return "no result after " + TIMEOUT_MILLIS + " ms";
+        }
+    }
+
+    private static boolean hasNull(Expr root) {
+        List<Object> pending = new ArrayList<>();
+        pending.add(root);
+
+        while (!pending.isEmpty()) {
+            Object node = pending.remove(pending.size() - 1);
+            if (node == null) return true;
+
+            if (node instanceof Expr.Block block) {
+                pending.addAll(block.expressions());
+            } else if (node instanceof Expr.Grouping grouping) {
+                pending.addAll(grouping.expressions());
+            } else if (node instanceof Expr.Listing listing) {
+                pending.addAll(listing.items());
+            } else if (node instanceof Expr.Table table) {
+                for (List<Expr.Cell> row : table.cells()) {
+                    pending.addAll(row);
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean scales(Random random) {
+        // Errors are counted in the time but not kept, so that the heap does
+        // not grow with the size.
+        Ntml.collect(new ArrayList<>() {
+            @Override
+            public boolean add(String error) {
+                return true;
+            }
+        });
+
+        try {
+            double first = 0;
+            double last = 0;
+
+            for (int size : SIZES) {
+                String source = document(random, size);
+                List<Token> tokens = new Scanner(source).scanTokens();
+                new Parser(tokens).parse();
+
+                // Best of a few runs, to leave out warm-up and collections.
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < 5; i++) {
+                    long start = System.nanoTime();
+                    new Parser(tokens).parse();
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+
+                last = (double)best / size;
+                if (first == 0) first = last;
+                System.out.printf("%,9d tokens: %.1f ns per token%n", size, last);
+            }
+
+            if (last > first * SLACK) {
+                System.err.printf("Time per token grew %.1f times with size%n", last / first);
+                return false;
+            }
+            return true;
+        } finally {
+            Ntml.collect(null);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package ntml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static ntml.TokenType.EOF;
+
+// Compiles one document with each phase on its own thread: the scanner
+// hands batches of tokens to the parser, the parser batches of top-level
+// expressions to the translator, and the translator batches of tags to the
+// calling thread, which writes them. The output is the same as run's, since
+// each phase still sees its input in document order.
+class Pipeline {
+    private static final int CAPACITY = 64;
+    private static final int TOKEN_BATCH = 4096;
+    private static final int EXPR_BATCH = 256;
+    private static final int TAG_BATCH = 4096;
+    // Marks the end of the expressions and of the tags.
+    private static final List<?> END = new ArrayList<>();
+
+    // Thrown in a stage waiting on a channel once another stage has failed.
+    private static class Cancelled extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Cancelled() {
+            super(null, null, false, false);
+        }
+    }
+
+    // A bounded queue with one producer and one consumer. Neither side
+    // takes a lock: each owns one index and only reads the other's. A full
+    // channel makes the producer wait, so a fast stage cannot run ahead of a
+    // slow one and fill the heap.
+    private class Channel<T> {
+        private final Object[] items = new Object[CAPACITY];
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        void put(T item) {
+            long next = tail.get();
+            for (int spins = 0; next - head.get() == CAPACITY; spins++) {
+                pause(spins);
+            }
+
+            items[(int)(next % CAPACITY)] = item;
+            tail.lazySet(next + 1);
+        }
+
+        @SuppressWarnings("unchecked")
+        T take() {
+            long next = head.get();
+            for (int spins = 0; tail.get() == next; spins++) {
+                pause(spins);
+            }
+
+            int slot = (int)(next % CAPACITY);
+            T item = (T)items[slot];
+            items[slot] = null;
+            head.lazySet(next + 1);
+            return item;
+        }
+
+        // Spins briefly, as the other side is usually just about to move,
+        // then parks for short spells.
+        private void pause(int spins) {
+            if (failure.get() != null) throw new Cancelled();
+
+            if (spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(20_000);
+            }
+        }
+    }
+
+    private final Options options;
+    private final Budget budget = Budget.current();
+    private final List<String> diagnostics = Ntml.collecting();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final Channel<List<Token>> tokens = new Channel<>();
+    private final Channel<List<Expr>> expressions = new Channel<>();
+    private final Channel<List<String>> tags = new Channel<>();
+    private volatile Set<Feature> features;
+
+    Pipeline(Options options) {
+        this.options = options;
+    }
+
+    void run(Reader reader, Writer writer) throws IOException {
+        Metrics.document();
+        long start = System.nanoTime();
+
+        Thread[] stages = {
+            stage("scan", () -> scan(reader)),
+            stage("parse", this::parse),
+            stage("translate", this::translate)
+        };
+
+        try {
+            write(writer);
+        } catch (Cancelled e) {
+            // The stage that failed is reported below.
+        } catch (IOException | RuntimeException | Error e) {
+            failure.compareAndSet(null, e);
+            throw e;
+        } finally {
+            for (Thread stage : stages) {
+                join(stage);
+            }
+        }
+
+        Throwable failed = failure.get();
+        if (failed instanceof RuntimeException) throw (RuntimeException)failed;
+        if (failed instanceof Error) throw (Error)failed;
+
+        Metrics.phase(Metrics.Phase.COMPILE, start);
+    }
+
+    private Thread stage(String name, Runnable body) {
+        Thread thread = new Thread(() -> {
+            Budget.use(budget);
+            Ntml.collect(diagnostics);
+            try {
+                body.run();
+            } catch (Cancelled e) {
+                // Another stage failed first.
+            } catch (RuntimeException | Error e) {
+                failure.compareAndSet(null, e);
+            }
+        }, "ntml-" + name);
+
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void join(Thread thread) {
+        boolean interrupted = false;
+
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // The last batch ends with the EOF token, after which the parser asks
+    // for no more.
+    private void scan(Reader reader) {
+        Scanner scanner = new Scanner(reader);
+        List<Token> batch = new ArrayList<>(TOKEN_BATCH);
+        Token token;
+
+        do {
+            token = scanner.nextToken();
+            batch.add(token);
+
+            if (batch.size() == TOKEN_BATCH) {
+                tokens.put(batch);
+                batch = new ArrayList<>(TOKEN_BATCH);
+            }
+        } while (token.type != EOF);
+
+        tokens.put(batch);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void parse() {
+        Parser parser = new Parser(new Supplier<Token>() {
+            private Iterator<Token> batch = Collections.emptyIterator();
+
+            @Override
+            public Token get() {
+                while (!batch.hasNext()) batch = tokens.take().iterator();
+                return batch.next();
+            }
+        });
+        if (options.intern) parser.intern();
+
+        List<Expr> batch = new ArrayList<>(EXPR_BATCH);
+        while (parser.hasNext()) {
+            Expr expr = parser.nextExpression();
+            if (expr != null) batch.add(expr);
+
+            if (batch.size() == EXPR_BATCH) {
+                expressions.put(batch);
+                batch = new ArrayList<>(EXPR_BATCH);
+            }
+        }
+
+        if (!batch.isEmpty()) expressions.put(batch);
+        expressions.put((List<Expr>)END);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void translate() {
+        Translator translator = new Translator(options);
+        List<String> batch = new ArrayList<>();
+
+        for (List<Expr> next = expressions.take(); next != END; next = expressions.take()) {
+            for (Expr expr : next) {
+                batch.addAll(translator.translate(expr));
+
+                if (batch.size() >= TAG_BATCH) {
+                    tags.put(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+        }
+
+        if (!batch.isEmpty()) tags.put(batch);
+        features = translator.features;
+        tags.put((List<String>)END);
+        translator.reportLinks();
+    }
+
+    private void write(Writer writer) throws IOException {
+        Formatter formatter = new Formatter(writer, options);
+        formatter.begin("Output", List.of());
+
+        for (List<String> next = tags.take(); next != END; next = tags.take()) {
+            formatter.append(next);
+        }
+
+        formatter.finish(features);
+    }
+}
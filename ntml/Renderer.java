@@ -0,0 +1,448 @@
+package ntml;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// An output backend. Backends only read the syntax tree, which is
+// immutable, so one parse feeds them all: each renders on a thread of its
+// own to a file of its own, and a target costs only its own rendering.
+interface Renderer {
+    // Names the target on the command line and the file it writes.
+    String extension();
+
+    void render(List<Expr> expressions, Options options, Writer writer) throws IOException;
+
+    static Renderer named(String name) {
+        switch (name) {
+            case "html": return new Html();
+            case "txt": return new Text();
+            case "json": return new Outline();
+            default: return null;
+        }
+    }
+
+    // Renders every target of the options, the first on the calling thread
+    // and the others alongside it.
+    static void renderAll(List<Expr> expressions, Options options) throws IOException {
+        Budget budget = Budget.current();
+        List<String> diagnostics = Ntml.collecting();
+        ExecutorService workers = Workers.perTask();
+        List<Future<?>> others = new ArrayList<>();
+
+        try {
+            for (String target : options.targets.subList(1, options.targets.size())) {
+                others.add(workers.submit(() -> {
+                    Budget.use(budget);
+                    Ntml.collect(diagnostics);
+                    try {
+                        write(named(target), expressions, options);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return null;
+                }));
+            }
+
+            write(named(options.targets.get(0)), expressions, options);
+
+            for (Future<?> other : others) {
+                wait(other);
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private static void write(Renderer renderer, List<Expr> expressions, Options options) throws IOException {
+        try (Writer writer = new BufferedWriter(new FileWriter(path(renderer, options)))) {
+            renderer.render(expressions, options, writer);
+        }
+    }
+
+    private static void wait(Future<?> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rendering.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) throw ((UncheckedIOException)cause).getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            throw (Error)cause;
+        }
+    }
+
+    // HTML goes to the output path; other targets go next to it, with their
+    // own extension in place of its.
+    private static String path(Renderer renderer, Options options) {
+        String output = options.outputPath;
+        if (renderer instanceof Html) return output;
+
+        int dot = output.lastIndexOf('.');
+        int separator = Math.max(output.lastIndexOf('/'), output.lastIndexOf(File.separatorChar));
+        String base = dot > separator + 1 ? output.substring(0, dot) : output;
+        return base + "." + renderer.extension();
+    }
+
+    class Html implements Renderer {
+        @Override
+        public String extension() {
+            return "html";
+        }
+
+        @Override
+        public void render(List<Expr> expressions, Options options, Writer writer) throws IOException {
+            Ntml.format(expressions, options, writer);
+        }
+    }
+
+    // Plain text, for search indexing and mail: markup is dropped from the
+    // text, list items are bulleted or numbered and indented by nesting,
+    // table cells are separated by bars, and headings and paragraphs are
+    // set apart by blank lines. Included files are not rendered.
+    class Text implements Renderer {
+        @Override
+        public String extension() {
+            return "txt";
+        }
+
+        @Override
+        public void render(List<Expr> expressions, Options options, Writer writer) throws IOException {
+            try {
+                new Walk(writer).run(expressions);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.flush();
+        }
+
+        // Walks the tree with a stack of its own, as the translator does,
+        // so any nesting depth fits. A String on the stack is text, a
+        // Runnable a change of layout, and a node is expanded into both.
+        private static class Walk {
+            private final Writer writer;
+            private final Deque<Object> stack = new ArrayDeque<>();
+            private final Budget budget = Budget.current();
+            private long visited = 0;
+            // List nesting, and how deep inside table cells, where lines run
+            // together.
+            private int indent = 0;
+            private int inline = 0;
+            private boolean lineStart = true;
+            private boolean blank = true;
+            // After a bullet, the item goes on the same line.
+            private boolean hold = false;
+
+            Walk(Writer writer) {
+                this.writer = writer;
+            }
+
+            void run(List<Expr> expressions) {
+                for (int i = expressions.size() - 1; i >= 0; i--) {
+                    push(expressions.get(i));
+                }
+
+                while (!stack.isEmpty()) {
+                    Object work = stack.pop();
+
+                    if (work instanceof String text) {
+                        write(text);
+                    } else if (work instanceof Expr expr) {
+                        budget.work(++visited);
+                        visit(expr);
+                    } else {
+                        ((Runnable)work).run();
+                    }
+                }
+
+                end();
+            }
+
+            private void push(Object work) {
+                if (work != null) stack.push(work);
+            }
+
+            private void visit(Expr expr) {
+                if (expr instanceof Expr.Text text) {
+                    line(plain(text.content()));
+                } else if (expr instanceof Expr.Paragraph paragraph) {
+                    paragraph(plain(paragraph.text()));
+                } else if (expr instanceof Expr.Grouping grouping) {
+                    children(grouping.expressions());
+                } else if (expr instanceof Expr.Block block) {
+                    children(block.expressions());
+                } else if (expr instanceof Expr.Listing listing) {
+                    listing(listing);
+                } else if (expr instanceof Expr.Title title) {
+                    paragraph(plain(title.text()).toUpperCase(Locale.ROOT));
+                } else if (expr instanceof Expr.Subtitle subtitle) {
+                    paragraph(plain(subtitle.text()));
+                } else if (expr instanceof Expr.Caption caption) {
+                    paragraph(plain(caption.text()));
+                } else if (expr instanceof Expr.Link link) {
+                    String text = plain(link.text());
+                    line(text.equals(link.href()) ? text : text + " <" + link.href() + ">");
+                } else if (expr instanceof Expr.Code code) {
+                    for (String line : code.code().strip().split("\n")) {
+                        line("    " + line);
+                    }
+                } else if (expr instanceof Expr.Math math) {
+                    line(math.math().strip());
+                } else if (expr instanceof Expr.Image image) {
+                    line("[" + image.src() + "]");
+                } else if (expr instanceof Expr.Definition definition) {
+                    definition(definition);
+                } else if (expr instanceof Expr.DefinitionList list) {
+                    for (Expr.Definition entry : list.entries()) {
+                        definition(entry);
+                    }
+                } else if (expr instanceof Expr.Table table) {
+                    table(table);
+                } else if (expr instanceof Expr.HorizontalLine) {
+                    paragraph("----");
+                } else if (expr instanceof Expr.Cell cell) {
+                    push(cell.content());
+                } else if (expr instanceof Expr.ListItem item) {
+                    push(item.item());
+                }
+                // Includes are left out: they render through the translator.
+            }
+
+            private void children(List<Expr> expressions) {
+                for (int i = expressions.size() - 1; i >= 0; i--) {
+                    push(expressions.get(i));
+                }
+            }
+
+            private void listing(Expr.Listing listing) {
+                List<Expr.ListItem> items = listing.items();
+
+                push((Runnable)() -> indent--);
+                for (int i = items.size() - 1; i >= 0; i--) {
+                    String bullet = listing.ordered() ? (i + 1) + ". " : "- ";
+                    push((Runnable)this::end);
+                    push(items.get(i));
+                    push((Runnable)() -> {
+                        end();
+                        write(bullet);
+                        hold = true;
+                    });
+                }
+                push((Runnable)() -> indent++);
+            }
+
+            private void definition(Expr.Definition definition) {
+                line(plain(definition.word()));
+                for (String meaning : definition.definitions()) {
+                    line("  - " + plain(meaning));
+                }
+            }
+
+            // Row by row, the cells of a row run together on one line.
+            private void table(Expr.Table table) {
+                List<Object> work = new ArrayList<>();
+
+                for (List<Expr.Cell> row : table.cells()) {
+                    work.add((Runnable)this::end);
+                    work.add((Runnable)() -> inline++);
+                    for (int i = 0; i < row.size(); i++) {
+                        if (i > 0) work.add(" |");
+                        work.add(row.get(i));
+                    }
+                    work.add((Runnable)() -> inline--);
+                    work.add((Runnable)this::end);
+                }
+
+                for (int i = work.size() - 1; i >= 0; i--) {
+                    push(work.get(i));
+                }
+                push((Runnable)this::separate);
+            }
+
+            private void paragraph(String text) {
+                separate();
+                line(text);
+                separate();
+            }
+
+            private void line(String text) {
+                if (inline > 0) {
+                    if (!lineStart) write(" ");
+                    write(text);
+                    return;
+                }
+
+                end();
+                write(text);
+                end();
+            }
+
+            private void write(String text) {
+                try {
+                    if (text.isEmpty()) return;
+                    if (lineStart) writer.write("  ".repeat(indent));
+
+                    writer.write(text);
+                    lineStart = false;
+                    blank = false;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            private void end() {
+                if (hold) {
+                    hold = false;
+                    return;
+                }
+                if (lineStart || inline > 0) return;
+
+                try {
+                    writer.write("\n");
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                lineStart = true;
+            }
+
+            // A blank line, unless there is one already.
+            private void separate() {
+                if (hold) return;
+                end();
+                if (blank || inline > 0) return;
+
+                try {
+                    writer.write("\n");
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                blank = true;
+            }
+        }
+    }
+
+    // The headings of the document as a tree of sections, in JSON, for
+    // navigation: [{"heading": "...", "level": 1, "sections": [...]}, ...].
+    // Only headings that stand in the flow of the document count, not those
+    // inside list items or table cells.
+    class Outline implements Renderer {
+        @Override
+        public String extension() {
+            return "json";
+        }
+
+        @Override
+        public void render(List<Expr> expressions, Options options, Writer writer) throws IOException {
+            Deque<Expr> stack = new ArrayDeque<>();
+            // The levels of the sections still open, innermost first.
+            Deque<Integer> open = new ArrayDeque<>();
+            Budget budget = Budget.current();
+            long visited = 0;
+            boolean first = true;
+
+            for (int i = expressions.size() - 1; i >= 0; i--) {
+                if (expressions.get(i) != null) stack.push(expressions.get(i));
+            }
+
+            writer.write("[");
+            while (!stack.isEmpty()) {
+                Expr expr = stack.pop();
+                budget.work(++visited);
+
+                List<Expr> children = expr instanceof Expr.Block block ? block.expressions()
+                        : expr instanceof Expr.Grouping grouping ? grouping.expressions()
+                        : null;
+                if (children != null) {
+                    for (int i = children.size() - 1; i >= 0; i--) {
+                        stack.push(children.get(i));
+                    }
+                    continue;
+                }
+
+                int level = expr instanceof Expr.Title ? 1
+                        : expr instanceof Expr.Subtitle ? 2
+                        : expr instanceof Expr.Caption ? 3
+                        : 0;
+                if (level == 0) continue;
+
+                while (!open.isEmpty() && open.peek() >= level) {
+                    open.pop();
+                    writer.write("]}");
+                    first = false;
+                }
+
+                if (!first) writer.write(",");
+                writer.write("{\"heading\": " + quote(plain(heading(expr))) + ", \"level\": " + level
+                        + ", \"sections\": [");
+                open.push(level);
+                first = true;
+            }
+
+            while (!open.isEmpty()) {
+                open.pop();
+                writer.write("]}");
+            }
+            writer.write("]\n");
+            writer.flush();
+        }
+
+        private static String heading(Expr expr) {
+            if (expr instanceof Expr.Title title) return title.text();
+            if (expr instanceof Expr.Subtitle subtitle) return subtitle.text();
+            return ((Expr.Caption)expr).text();
+        }
+
+        private static String quote(String text) {
+            StringBuilder result = new StringBuilder("\"");
+
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '"' || c == '\\') {
+                    result.append('\\').append(c);
+                } else if (c < 0x20) {
+                    result.append(String.format("\\u%04x", (int)c));
+                } else {
+                    result.append(c);
+                }
+            }
+
+            return result.append('"').toString();
+        }
+    }
+
+    // Text as it reads once rendered: tags dropped and the common entities
+    // replaced by their characters, with or without the semicolon, as the
+    // scanner escapes brackets without one.
+    static String plain(String html) {
+        if (html.indexOf('<') == -1 && html.indexOf('&') == -1) return html;
+
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < html.length(); i++) {
+            char c = html.charAt(i);
+            int close = c == '<' ? html.indexOf('>', i) : -1;
+
+            if (close != -1) {
+                i = close;
+            } else {
+                result.append(c);
+            }
+        }
+
+        return result.toString()
+                .replace("&lt;", "<").replace("&lt", "<").replace("&gt;", ">").replace("&gt", ">")
+                .replace("&quot;", "\"").replace("&nbsp;", " ").replace("&amp;", "&");
+    }
+}
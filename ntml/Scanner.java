@@ -1,30 +1,73 @@
 package ntml;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import static ntml.TokenType.*;
 
 class Scanner {
-    private final String source;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final Budget budget = Budget.current();
     private final List<Token> tokens = new ArrayList<>();
 
+    // Only the characters of the token being scanned are kept, so memory is
+    // bounded by the longest token rather than by the whole source.
+    private char[] source = new char[BUFFER_SIZE];
+    private int length = 0;
+    private boolean exhausted = false;
+    private Token scanned = null;
+    private long read = 0;
+    private int count = 0;
+
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
     Scanner(String source) {
-        this.source = source;
+        this(new StringReader(source));
+    }
+
+    Scanner(Reader reader) {
+        this.reader = reader;
     }
     
     List<Token> scanTokens() {
-        while (!isAtEnd()) {
+        Token token;
+        do {
+            token = nextToken();
+            tokens.add(token);
+        } while (token.type != EOF);
+
+        return tokens;
+    }
+
+    Token nextToken() {
+        while (scanned == null) {
+            if (isAtEnd()) return end();
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+        Token token = scanned;
+        scanned = null;
+        budget.tokens(++count);
+        return token;
+    }
+    
+    private Token end() {
+        if (count >= 0) {
+            Metrics.tokens(count + 1);
+            Metrics.charactersIn(read);
+            count = -1;
+        }
+
+        return new Token(EOF, "", null, line);
     }
     
     private void scanToken() {
@@ -91,7 +134,7 @@ class Scanner {
             
             case '/':
                 if (match('/')) {
-                    while (peek() != '\n' && !isAtEnd()) advance();
+                    skipTo('\n', '\n');
                 } else {
                     addToken(SLASH);
                 }
@@ -117,10 +160,7 @@ class Scanner {
     }
     
     private void math() {
-        while (peek() != '$' && !isAtEnd()) {
-            if (peek() == '\n') line++;
-            advance();
-        }
+        skipTo('$', '$');
 
         if (isAtEnd()) {
             Ntml.error(line, "Unterminated math.");
@@ -129,15 +169,12 @@ class Scanner {
 
         advance();
 
-        String value = clean(source.substring(start + 1, current - 1));
+        String value = clean(text(start + 1, current - 1));
         addToken(MATH, value);
     }
     
     private void code() {
-        while (peek() != '§' && !isAtEnd()) {
-            if (peek() == '\n') line++;
-            advance();
-        }
+        skipTo('§', '§');
 
         if (isAtEnd()) {
             Ntml.error(line, "Unterminated code.");
@@ -146,22 +183,14 @@ class Scanner {
 
         advance();
 
-        String value = source.substring(start + 1, current - 1);
-        value = value.replace("<", "&lt");
-        value = value.replace(">", "&gt");
+        String value = text(start + 1, current - 1);
         addToken(CODE, value);
     }
     
     private void string() {
-        while (peek() != '"' && !isAtEnd()) {
-            if (peek() == '\n') {
-                line++;
-            }
-            
-            if (peek() == '\\') { //This is done so that \" can be escaped
-                 advance();
-            }
-            
+        while (skipTo('"', '\\') && peek() != '"') {
+            advance(); //This is done so that \" can be escaped
+            if (peek() == '\n') line++;
             advance();
         }
 
@@ -172,7 +201,7 @@ class Scanner {
 
         advance();
 
-        String value = clean(source.substring(start + 1, current - 1));
+        String value = clean(text(start + 1, current - 1));
         value = value.replace("<", "&lt");
         value = value.replace(">", "&gt");
         value = escape(value);
@@ -191,7 +220,7 @@ class Scanner {
     
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (source[current] != expected) return false;
 
         current++;
         return true;
@@ -199,7 +228,7 @@ class Scanner {
     
     private char peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return source[current];
     }
     
     private boolean isAlpha(char c) {
@@ -219,12 +248,73 @@ class Scanner {
         return c >= '0' && c <= '9';
     } 
     
+    // Literals and comments make up most of a document, so their bodies are
+    // skipped with a tight loop over the buffer, rather than a peek() and
+    // advance() per character, stopping at either character and counting
+    // the newlines passed on the way. Returns false at the end of the input.
+    private boolean skipTo(char delimiter, char stop) {
+        while (true) {
+            char[] chars = source;
+            int end = length;
+            int i = current;
+            int newlines = 0;
+
+            while (i < end) {
+                char c = chars[i];
+                if (c == delimiter | c == stop) break;
+                newlines += c == '\n' ? 1 : 0;
+                i++;
+            }
+
+            line += newlines;
+            current = i;
+            if (i < end) return true;
+            if (!fill()) return false;
+        }
+    }
+
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= length && !fill();
+    }
+
+    private boolean fill() {
+        if (exhausted) return false;
+
+        if (start > 0) {
+            System.arraycopy(source, start, source, 0, length - start);
+            length -= start;
+            current -= start;
+            start = 0;
+        }
+
+        if (length == source.length) {
+            char[] grown = new char[source.length * 2];
+            System.arraycopy(source, 0, grown, 0, length);
+            source = grown;
+        }
+
+        try {
+            int read = reader.read(source, length, source.length - length);
+            if (read == -1) {
+                exhausted = true;
+                return false;
+            }
+
+            length += read;
+            this.read += read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
   
     private char advance() {
-        return source.charAt(current++);
+        if (isAtEnd()) return '\0';
+        return source[current++];
+    }
+
+    private String text(int from, int to) {
+        return new String(source, from, to - from);
     }
 
     private void addToken(TokenType type) {
@@ -232,8 +322,8 @@ class Scanner {
     }
 
     private void addToken(TokenType type, String literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        String text = text(start, current);
+        scanned = new Token(type, text, literal, line);
     }
 }
 
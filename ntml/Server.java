@@ -0,0 +1,161 @@
+package ntml;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+
+// Serves a packed site over HTTP, one request per connection. A page is
+// found by a binary search of the mapped index and its body sent with
+// transferTo, which lets the kernel copy it from the page cache to the
+// socket without it passing through the heap. The gzip variant is sent to
+// clients that accept it. Only GET and HEAD are served.
+class Server {
+    // Longer request heads are refused.
+    private static final int MAX_HEAD = 8192;
+
+    private final Pack pack;
+    private final int port;
+    private final String type = "text/html; charset=" + Charset.defaultCharset().name();
+
+    Server(Options options) throws IOException {
+        this.pack = Pack.open(Paths.get(options.servePath));
+        this.port = options.port;
+    }
+
+    void serve() throws IOException {
+        Metrics.register();
+
+        ExecutorService workers = Workers.perTask();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+
+            while (true) {
+                SocketChannel client = server.accept();
+                workers.submit(() -> handle(client));
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try (client) {
+            String head = head(client);
+            if (head == null) {
+                respond(client, "400 Bad Request", null, false, false);
+                return;
+            }
+
+            String[] request = head.substring(0, head.indexOf("\r\n")).split(" ");
+            if (request.length != 3) {
+                respond(client, "400 Bad Request", null, false, false);
+                return;
+            }
+
+            boolean body = request[0].equals("GET");
+            if (!body && !request[0].equals("HEAD")) {
+                respond(client, "405 Method Not Allowed", null, false, false);
+                return;
+            }
+
+            String path = path(request[1]);
+            Pack.Entry entry = path != null ? pack.find(path) : null;
+            if (entry == null) {
+                respond(client, path == null ? "400 Bad Request" : "404 Not Found", null, false, false);
+                return;
+            }
+
+            respond(client, "200 OK", entry, acceptsGzip(head), body);
+        } catch (IOException e) {
+            // The client went away.
+        } catch (RuntimeException e) {
+            // A bug serving one request must not end the others.
+            e.printStackTrace();
+        }
+    }
+
+    // The request line and headers, or null when they are too long or the
+    // connection ends first.
+    private static String head(SocketChannel client) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_HEAD);
+
+        while (buffer.hasRemaining()) {
+            if (client.read(buffer) == -1) return null;
+
+            String text = new String(buffer.array(), 0, buffer.position(), StandardCharsets.ISO_8859_1);
+            if (text.contains("\r\n\r\n")) return text;
+        }
+
+        return null;
+    }
+
+    // The path of the target without its leading slash, query and escapes,
+    // or null for a target that is not a path. A target with no path, as
+    // "//host" reads as, is the root.
+    private static String path(String target) {
+        if (!target.startsWith("/")) return null;
+
+        try {
+            String path = new URI(target).getPath();
+            return path == null || path.isEmpty() ? "" : path.substring(1);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private static boolean acceptsGzip(String head) {
+        for (String line : head.split("\r\n")) {
+            String header = line.toLowerCase(Locale.ROOT);
+            if (header.startsWith("accept-encoding:") && header.contains("gzip")) return true;
+        }
+        return false;
+    }
+
+    // The head, then for a GET of a page its body, sent from the archive.
+    private void respond(SocketChannel client, String status, Pack.Entry entry, boolean gzip, boolean body)
+            throws IOException {
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+        long offset = 0;
+        long length = 0;
+
+        if (entry != null) {
+            offset = gzip ? entry.gzipOffset() : entry.offset();
+            length = gzip ? entry.gzipLength() : entry.length();
+
+            head.append("Content-Type: ").append(type).append("\r\n");
+            if (gzip) head.append("Content-Encoding: gzip\r\n");
+            head.append("Vary: Accept-Encoding\r\n");
+        } else if (status.startsWith("405")) {
+            head.append("Allow: GET, HEAD\r\n");
+        }
+        head.append("Content-Length: ").append(length).append("\r\n");
+        head.append("Connection: close\r\n\r\n");
+
+        ByteBuffer bytes = ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        while (bytes.hasRemaining()) {
+            client.write(bytes);
+        }
+
+        if (entry == null || !body) return;
+
+        // A pack cut short, or replaced, sends nothing more: the connection
+        // is closed rather than waited on for bytes that will never come.
+        FileChannel file = pack.channel();
+        long end = offset + length;
+        while (offset < end) {
+            long sent = file.transferTo(offset, end - offset, client);
+            if (sent <= 0) throw new IOException("Pack ends before byte " + end + ".");
+            offset += sent;
+        }
+    }
+}
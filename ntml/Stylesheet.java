@@ -0,0 +1,342 @@
+package ntml;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// A stylesheet split into its rules, so a page can inline only the rules
+// that can match it. Each selector is reduced to the element names and
+// classes it needs, "div" and ".code" for div.code > pre; a rule is kept
+// when any of its selectors needs nothing the page lacks. Ids, attributes
+// and pseudo-classes are not checked, so a rule is only dropped when it
+// certainly cannot match. Custom elements such as mjx-container are
+// created by scripts, not by the markup, and always count as present.
+// At-rules other than @media and @supports are always kept.
+//
+// Every rule keeps its text as written, with the whitespace and comments
+// before it, so keeping every rule reproduces the stylesheet exactly.
+class Stylesheet {
+    private static class Rule {
+        final int index;
+        final String text;
+        // What each selector needs; null for a rule that is always kept.
+        final List<Set<String>> selectors;
+        // For @media and @supports, the rules inside and the text that
+        // closes the block.
+        final List<Rule> nested;
+        final String close;
+
+        Rule(int index, String text, List<Set<String>> selectors, List<Rule> nested, String close) {
+            this.index = index;
+            this.text = text;
+            this.selectors = selectors;
+            this.nested = nested;
+            this.close = close;
+        }
+    }
+
+    private final String css;
+    private final List<Rule> rules;
+    private final String trailing;
+    private int position = 0;
+    private int count = 0;
+    // Where the text of the next rule starts.
+    private int start = 0;
+
+    Stylesheet(String css) {
+        this.css = css;
+        this.rules = rules(false);
+        this.trailing = css.substring(start);
+    }
+
+    // The rules that can match a page with the given element names and
+    // classes, as collected by scan.
+    BitSet select(Set<String> used) {
+        BitSet kept = new BitSet(count);
+        select(rules, used, kept);
+        return kept;
+    }
+
+    private static boolean select(List<Rule> rules, Set<String> used, BitSet kept) {
+        boolean any = false;
+
+        for (Rule rule : rules) {
+            boolean keep;
+            if (rule.nested != null) {
+                keep = select(rule.nested, used, kept);
+            } else if (rule.selectors == null) {
+                keep = true;
+            } else {
+                keep = false;
+                for (Set<String> needs : rule.selectors) {
+                    if (used.containsAll(needs)) {
+                        keep = true;
+                        break;
+                    }
+                }
+            }
+
+            if (keep) kept.set(rule.index);
+            any |= keep;
+        }
+
+        return any;
+    }
+
+    // The stylesheet as lines, with only the kept rules, or all of them
+    // when kept is null.
+    List<String> lines(BitSet kept) {
+        if (kept == null) return css.lines().toList();
+
+        StringBuilder text = new StringBuilder();
+        append(rules, kept, text);
+        text.append(trailing);
+
+        List<String> lines = new ArrayList<>(text.toString().lines().toList());
+        while (!lines.isEmpty() && lines.get(0).isBlank()) lines.remove(0);
+        return lines;
+    }
+
+    private static void append(List<Rule> rules, BitSet kept, StringBuilder text) {
+        for (Rule rule : rules) {
+            if (!kept.get(rule.index)) continue;
+
+            text.append(rule.text);
+            if (rule.nested != null) {
+                append(rule.nested, kept, text);
+                text.append(rule.close);
+            }
+        }
+    }
+
+    // Adds the element names and classes in the markup to used: "div" for
+    // <div> and ".code" for class="code".
+    static void scan(List<String> markup, Set<String> used) {
+        for (String html : markup) {
+            scan(html, used);
+        }
+    }
+
+    static void scan(String html, Set<String> used) {
+        int open = html.indexOf('<');
+
+        while (open != -1) {
+            int name = open + 1;
+            int end = name;
+            while (end < html.length() && isNameChar(html.charAt(end))) end++;
+            if (end == name) {
+                open = html.indexOf('<', name);
+                continue;
+            }
+            used.add(html.substring(name, end).toLowerCase(Locale.ROOT));
+
+            int close = html.indexOf('>', end);
+            if (close == -1) close = html.length();
+            classes(html, end, close, used);
+
+            open = html.indexOf('<', close);
+        }
+    }
+
+    private static void classes(String html, int from, int to, Set<String> used) {
+        int attribute = html.indexOf("class=", from);
+        if (attribute == -1 || attribute >= to || attribute + 6 >= to) return;
+
+        char quote = html.charAt(attribute + 6);
+        int value = attribute + 7;
+        int end = quote == '"' || quote == '\'' ? html.indexOf(quote, value) : -1;
+        if (end == -1 || end > to) return;
+
+        for (String name : html.substring(value, end).split("\\s+")) {
+            if (!name.isEmpty()) used.add("." + name);
+        }
+    }
+
+    // The rules up to the end of the stylesheet or, nested, up to the
+    // closing brace of the block, which is left to the caller.
+    private List<Rule> rules(boolean nested) {
+        List<Rule> result = new ArrayList<>();
+
+        while (true) {
+            skipSpace();
+            if (position >= css.length() || (nested && css.charAt(position) == '}')) return result;
+
+            int prelude = position;
+            int end = skipTo("{;");
+            if (end >= css.length()) {
+                position = css.length();
+                return result;
+            }
+
+            String selector = withoutComments(css.substring(prelude, end)).trim();
+            position = end + 1;
+            int index = count++;
+
+            if (css.charAt(end) == ';') {
+                result.add(new Rule(index, take(), null, null, null));
+            } else if (selector.startsWith("@media") || selector.startsWith("@supports")) {
+                String text = take();
+                List<Rule> inner = rules(true);
+                position = Math.min(position + 1, css.length());
+                result.add(new Rule(index, text, null, inner, take()));
+            } else {
+                skipBlock();
+                List<Set<String>> selectors = selector.startsWith("@") ? null : selectors(selector);
+                result.add(new Rule(index, take(), selectors, null, null));
+            }
+        }
+    }
+
+    private String take() {
+        String text = css.substring(start, position);
+        start = position;
+        return text;
+    }
+
+    private void skipSpace() {
+        while (position < css.length()) {
+            if (Character.isWhitespace(css.charAt(position))) {
+                position++;
+            } else if (css.startsWith("/*", position)) {
+                skipComment();
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void skipComment() {
+        int end = css.indexOf("*/", position + 2);
+        position = end == -1 ? css.length() : end + 2;
+    }
+
+    private void skipString() {
+        char quote = css.charAt(position++);
+
+        while (position < css.length() && css.charAt(position) != quote) {
+            if (css.charAt(position) == '\\') position++;
+            position++;
+        }
+        position++;
+    }
+
+    // Returns the index of the first of the stops outside strings and
+    // comments, or the length of the stylesheet.
+    private int skipTo(String stops) {
+        while (position < css.length()) {
+            char c = css.charAt(position);
+
+            if (stops.indexOf(c) != -1) {
+                return position;
+            } else if (c == '"' || c == '\'') {
+                skipString();
+            } else if (css.startsWith("/*", position)) {
+                skipComment();
+            } else {
+                position++;
+            }
+        }
+
+        return css.length();
+    }
+
+    // Skips to just past the brace that closes the block just opened.
+    private void skipBlock() {
+        int depth = 1;
+
+        while (depth > 0 && skipTo("{}") < css.length()) {
+            depth += css.charAt(position) == '{' ? 1 : -1;
+            position++;
+        }
+    }
+
+    private static String withoutComments(String text) {
+        StringBuilder result = new StringBuilder();
+        int from = 0;
+
+        while (true) {
+            int open = text.indexOf("/*", from);
+            if (open == -1) break;
+
+            result.append(text, from, open);
+            int close = text.indexOf("*/", open + 2);
+            from = close == -1 ? text.length() : close + 2;
+        }
+
+        return result.append(text.substring(from)).toString();
+    }
+
+    // Splits a selector list at the commas outside parentheses and
+    // brackets, and reduces each selector to what it needs.
+    private static List<Set<String>> selectors(String list) {
+        List<Set<String>> result = new ArrayList<>();
+        int depth = 0;
+        int from = 0;
+
+        for (int i = 0; i <= list.length(); i++) {
+            char c = i < list.length() ? list.charAt(i) : ',';
+
+            if (c == '(' || c == '[') {
+                depth++;
+            } else if (c == ')' || c == ']') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                result.add(needs(list.substring(from, i)));
+                from = i + 1;
+            }
+        }
+
+        return result;
+    }
+
+    private static Set<String> needs(String selector) {
+        Set<String> needs = new HashSet<>();
+        int i = 0;
+
+        while (i < selector.length()) {
+            char c = selector.charAt(i);
+
+            if (c == '(' || c == '[') {
+                i = skipGroup(selector, i);
+            } else if (c == '.' || c == '#' || c == ':') {
+                int end = i + 1;
+                while (end < selector.length() && selector.charAt(end) == ':') end++;
+                int name = end;
+                while (end < selector.length() && isNameChar(selector.charAt(end))) end++;
+
+                if (c == '.' && end > name) needs.add("." + selector.substring(name, end));
+                i = end;
+            } else if (isNameChar(c)) {
+                int end = i;
+                while (end < selector.length() && isNameChar(selector.charAt(end))) end++;
+
+                String element = selector.substring(i, end).toLowerCase(Locale.ROOT);
+                if (element.indexOf('-') == -1) needs.add(element);
+                i = end;
+            } else {
+                i++;
+            }
+        }
+
+        return needs;
+    }
+
+    private static int skipGroup(String selector, int from) {
+        int depth = 0;
+
+        for (int i = from; i < selector.length(); i++) {
+            char c = selector.charAt(i);
+            if (c == '(' || c == '[') depth++;
+            if ((c == ')' || c == ']') && --depth == 0) return i + 1;
+        }
+
+        return selector.length();
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '-' || c == '_' || c > 0x7f;
+    }
+}
@@ -0,0 +1,207 @@
+package ntml;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The page shell around a document: HTML with the slots {{title}},
+// {{head}}, {{nav}} and {{body}}. A slot alone on its line takes a block of
+// lines indented from the slot's own depth in tabs; anywhere else it is
+// replaced in place. A template is parsed once into static text and slots,
+// and cached with its stylesheet until either file changes. The head, the
+// inlined stylesheet, is rendered once for each selection of rules, so the
+// shell of a page costs a few writes.
+class Template {
+    static final String DEFAULT = String.join("\n",
+        "<html>",
+        "\t<head>",
+        "\t\t{{head}}",
+        "\t\t<title>",
+        "\t\t\t{{title}}",
+        "\t\t</title>",
+        "\t</head>",
+        "\t<body>",
+        "\t\t<div class=\"main\">",
+        "\t\t\t{{nav}}",
+        "\t\t\t{{body}}",
+        "\t\t\t{{nav}}",
+        "\t\t</div>",
+        "\t</body>",
+        "</html>");
+
+    private static final List<String> SLOTS = List.of("title", "head", "nav", "body");
+
+    static class Slot {
+        final String name;
+        final int depth;
+        final boolean block;
+
+        Slot(String name, int depth, boolean block) {
+            this.name = name;
+            this.depth = depth;
+            this.block = block;
+        }
+    }
+
+    private static final Map<String, Template> cache = new ConcurrentHashMap<>();
+    // Bounds the heads kept per template, as every page may select
+    // different rules.
+    private static final int MAX_HEADS = 256;
+
+    // Strings and Slots, in order.
+    final List<Object> parts = new ArrayList<>();
+    final Stylesheet style;
+    // The element names and classes in the template itself.
+    final Set<String> markup = new HashSet<>();
+    private final Map<List<Object>, String> heads = new ConcurrentHashMap<>();
+    private final long templateModified;
+    private final long styleModified;
+
+    private Template(long templateModified, long styleModified, Stylesheet style) {
+        this.templateModified = templateModified;
+        this.styleModified = styleModified;
+        this.style = style;
+    }
+
+    static Template load(Options options) throws IOException {
+        String key = options.templatePath + "\n" + options.stylePath;
+        long templateModified = options.templatePath != null ? modified(options.templatePath) : 0;
+        long styleModified = modified(options.stylePath);
+
+        Template template = cache.get(key);
+        if (template != null && template.templateModified == templateModified
+                && template.styleModified == styleModified) {
+            return template;
+        }
+
+        String text = options.templatePath != null
+                ? new String(Files.readAllBytes(Paths.get(options.templatePath)), Charset.defaultCharset())
+                : DEFAULT;
+        String css = new String(Files.readAllBytes(Paths.get(options.stylePath)), StandardCharsets.UTF_8);
+        template = new Template(templateModified, styleModified, new Stylesheet(css));
+        template.parse(text);
+
+        if (!template.hasBody()) throw new IOException("Template has no {{body}} slot.");
+        cache.put(key, template);
+        return template;
+    }
+
+    private static long modified(String path) throws IOException {
+        return Files.getLastModifiedTime(Paths.get(path)).toMillis();
+    }
+
+    // The head for the slot with the kept rules of the stylesheet, or all
+    // of them when kept is null.
+    String head(Slot slot, BitSet kept) throws IOException {
+        List<Object> key = Arrays.asList(slot, kept);
+        String head = heads.get(key);
+        Metrics.Cache metrics = Metrics.cache("heads");
+
+        if (head != null) {
+            metrics.hit();
+            return head;
+        }
+        metrics.miss();
+
+        List<String> lines = new ArrayList<>();
+        lines.add("<style>");
+        lines.addAll(style.lines(kept));
+        lines.add("</style>");
+
+        if (slot.block) {
+            StringWriter rendered = new StringWriter();
+            new Formatter(rendered, (Template)null).block(lines, slot.depth);
+            head = rendered.toString();
+        } else {
+            head = String.join("\n", lines);
+        }
+
+        if (heads.size() < MAX_HEADS) heads.put(key, head);
+        return head;
+    }
+
+    private void parse(String text) throws IOException {
+        StringBuilder statics = new StringBuilder();
+        String[] lines = text.split("\n", -1);
+
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            String trimmed = line.trim();
+            String name = trimmed.startsWith("{{") && trimmed.endsWith("}}")
+                    ? trimmed.substring(2, trimmed.length() - 2) : null;
+
+            if (name != null && SLOTS.contains(name)) {
+                int depth = 0;
+                while (depth < line.length() && line.charAt(depth) == '\t') depth++;
+
+                add(statics);
+                parts.add(new Slot(name, depth, true));
+                continue;
+            }
+
+            inline(line, statics);
+            if (i < lines.length - 1) statics.append('\n');
+        }
+
+        add(statics);
+    }
+
+    private void inline(String line, StringBuilder statics) {
+        int from = 0;
+
+        while (true) {
+            int open = line.indexOf("{{", from);
+            int close = open == -1 ? -1 : line.indexOf("}}", open + 2);
+            if (close == -1) break;
+
+            String name = line.substring(open + 2, close);
+            if (SLOTS.contains(name)) {
+                statics.append(line, from, open);
+                add(statics);
+                parts.add(new Slot(name, 0, false));
+                from = close + 2;
+            } else {
+                statics.append(line, from, open + 2);
+                from = open + 2;
+            }
+        }
+
+        statics.append(line, from, line.length());
+    }
+
+    private void add(StringBuilder statics) {
+        if (statics.length() == 0) return;
+
+        Stylesheet.scan(statics.toString(), markup);
+        parts.add(statics.toString());
+        statics.setLength(0);
+    }
+
+    private boolean hasBody() {
+        for (Object part : parts) {
+            if (part instanceof Slot && ((Slot)part).name.equals("body")) return true;
+        }
+
+        return false;
+    }
+
+    // Whether the head is on a line of its own, so more lines can follow it.
+    boolean hasHead() {
+        for (Object part : parts) {
+            if (part instanceof Slot && ((Slot)part).name.equals("head") && ((Slot)part).block) return true;
+        }
+
+        return false;
+    }
+}
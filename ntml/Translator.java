@@ -1,223 +1,402 @@
 package ntml;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
-import ntml.Expr.ListItem;
-import ntml.Expr.Listable;
-import ntml.Expr.Visitor;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
-public class Translator implements Visitor<List<String>> {
+public class Translator {
     
     public List<Expr> expressions;
+    final Set<Feature> features = EnumSet.noneOf(Feature.class);
+    // Every file included, directly or not, with its time and hash.
+    final Map<Path, Fragments.Source> included = new HashMap<>();
+    final Options options;
+    private final Budget budget = Budget.current();
+    private Links links;
+    // For an included file, the link targets met, which the documents that
+    // include it check instead.
+    List<String> targets;
+    // The file being translated, null for stdin, and the files that include
+    // it, outermost first.
+    Path source;
+    List<Path> including = new ArrayList<>();
+    // With interning, the output of a node met a second time is kept and
+    // replayed from then on. Only nodes that do repeat are kept, so nested
+    // containers do not each hold a copy of their subtree's output.
+    private final Set<Expr> seen;
+    private final Map<Expr, List<String>> memo;
+    
+    public Translator(Options options) {
+        this(new ArrayList<>(), options);
+    }
     
     public Translator(List<Expr> expressions) {
-        this.expressions = expressions;
+        this(expressions, new Options());
     }
     
-    public List<String> translate() {
-        List<String> result = new ArrayList<>();
+    public Translator(List<Expr> expressions, Options options) {
+        this.expressions = expressions;
+        this.options = options;
+        this.seen = options.intern ? Collections.newSetFromMap(new IdentityHashMap<>()) : null;
+        this.memo = options.intern ? new IdentityHashMap<>() : null;
         
-        for (Expr expr : expressions) {
-            result.addAll(expr.accept(this));
+        String input = options.inputPath;
+        if (input != null && !input.equals(Options.STANDARD_STREAM)) {
+            this.source = Paths.get(input).toAbsolutePath().normalize();
         }
         
-        return result;
+        this.links = options.checkLinks != Options.LinkCheck.NONE ? new Links(options, source) : null;
     }
-
-    @Override
-    public List<String> visitTitleExpr(Expr.Title expr) {
-        List<String> result = new ArrayList<>();
-        result.add("<h1>");
-        result.add(expr.text);
-        result.add("</h1>");
+    
+    // A translator for a file that this one's file includes.
+    Translator include(List<Expr> expressions, Path file) {
+        Translator translator = new Translator(expressions, options);
+        translator.source = file;
+        // Fragments are cached, so their links are checked by each document
+        // including them rather than once when compiled.
+        translator.links = null;
+        translator.targets = new ArrayList<>();
+        translator.including.addAll(including);
+        if (source != null) translator.including.add(source);
         
-        return result;
+        return translator;
     }
-
-    @Override
-    public List<String> visitBlockExpr(Expr.Block expr) {
+    
+    public List<String> translate() {
         List<String> result = new ArrayList<>();
-        result.add("<div>");
         
-        for(Expr e : expr.expressions) {
-            result.addAll(e.accept(this));
+        List<Expr> tree = options.optimize ? Optimizer.optimize(expressions, options.intern) : expressions;
+        for (Expr expr : tree) {
+            result.addAll(new Walk(null).run(expr));
         }
         
-        result.add("</div>");
-        return result; 
-    }
-
-    @Override
-    public List<String> visitGroupingExpr(Expr.Grouping expr) {
-        List<String> result = new ArrayList<>();
-        for (Expr e : expr.expressions) {
-            result.addAll(e.accept(this));
-        }
         return result;
     }
-
-    @Override
-    public List<String> visitParagraphExpr(Expr.Paragraph expr) {
-        List<String> result = new ArrayList<>();
-        result.add("<p>");
-        result.add(expr.text);
-        result.add("</p>");
-        
-        return result;
+    
+    // One expression at a time, as the pipeline translates, each optimized
+    // on its own.
+    public List<String> translate(Expr expr) {
+        return new Walk(null).run(options.optimize ? Optimizer.optimize(expr) : expr);
     }
-
-    @Override
-    public List<String> visitListingExpr(Expr.Listing expr) {
-        List<String> result = new ArrayList<>();
-        result.add(expr.ordered ? "<ol>" : "<ul>");
-        for(ListItem li : expr.items) {
-            result.addAll(li.accept(this));
-        }
-        result.add(expr.ordered ? "</ol>" : "</ul>");
-        
-        return result;
+    
+    // Output is handed to the sink a table row at a time, so a streamed table
+    // is never translated as a whole.
+    public void translate(Expr expr, Consumer<List<String>> sink) {
+        new Walk(sink).run(options.optimize ? Optimizer.optimize(expr) : expr);
     }
-
-    @Override
-    public List<String> visitTextExpr(Expr.Text expr) {
-        List<String> result = new ArrayList<>();
-        result.add(expr.content);
-        return result;
+    
+    // Reports the broken link targets, once any checks still running are done.
+    void reportLinks() {
+        if (links != null) links.report();
     }
 
-    @Override
-    public List<String> visitListItemExpr(ListItem expr) {
-        List<String> result = new ArrayList<>();
-        result.add("<li>");
-        result.addAll(expr.item.acceptListable(this));
-        result.add("</li>");
-        return result;
+    private static void element(String tag, String text, List<String> result) {
+        result.add("<" + tag + ">");
+        result.add(text);
+        result.add("</" + tag + ">");
     }
 
-    @Override
-    public List<String> visitSubtitleExpr(Expr.Subtitle expr) {
-        List<String> result = new ArrayList<>();
-        result.add("<h2>");
-        result.add(expr.text);
-        result.add("</h2>");
-        
-        return result;
-    }
-    
-    @Override
-    public List<String> visitCaptionExpr(Expr.Caption expr) {
-        List<String> result = new ArrayList<>();
-        result.add("<h3>");
-        result.add(expr.text);
-        result.add("</h3>");
-        
-        return result;
+    private static void definition(Expr.Definition expr, List<String> result) {
+        result.add("<dl>");
+        entry(expr, result);
+        result.add("</dl>");
     }
 
-    @Override
-    public List<String> visitHorizontalLineExpr(Expr.HorizontalLine expr) {
-        List<String> result = new ArrayList<>();
-        result.add("<hr>");
-        return result;
+    private static void definitions(Expr.DefinitionList expr, List<String> result) {
+        result.add("<dl>");
+        for (Expr.Definition entry : expr.entries()) {
+            entry(entry, result);
+        }
+        result.add("</dl>");
     }
 
-    @Override
-    public List<String> visitDefinitionExpr(Expr.Definition expr) {
-        List<String> result = new ArrayList<>();
-        result.add("<dl>");
+    private static void entry(Expr.Definition expr, List<String> result) {
         result.add("<dt>");
-        result.add(expr.word);
+        result.add(expr.word());
         result.add("</dt>");
         
-        for (String definition : expr.definitions) {
+        for (String definition : expr.definitions()) {
             result.add("<dd>");
             result.add(definition);
             result.add("</dd>");
         }
-        
-        result.add("</dl>");
-        
-        return result;
     }
 
-    @Override
-    public List<String> visitLinkExpr(Expr.Link expr) {
-        List<String> result = new ArrayList<>();
-        result.add("<p><a href=\"" + expr.href + "\" target=\"_blank\">");
-        result.add(expr.text);
-        result.add("</a></p>");
+    private void check(String target) {
+        if (links != null) links.check(target);
+        if (targets != null) targets.add(target);
+    }
+
+    private void link(Expr.Link expr, List<String> result) {
+        check(expr.href());
         
-        return result;
+        result.add("<p><a href=\"" + expr.href() + "\" target=\"_blank\">");
+        result.add(expr.text());
+        result.add("</a></p>");
     }
 
-    @Override
-    public List<String> visitImageExpr(Expr.Image expr) {
-        List<String> result = new ArrayList<>();
-        result.add("<img src=\"" + expr.src + "\" "
-                        + "width=\"" + expr.width + "\" "
-                        + "height=\"" + expr.height + "\">");
-        result.add("<br>");
+    private void image(Expr.Image expr, List<String> result) {
+        check(expr.src());
+        String width = expr.width();
+        String height = expr.height();
         
-        return result;
+        if (width == null) {
+            int[] size = ImageProbe.dimensions(options.outputDirectory(), expr.src());
+            width = size != null ? String.valueOf(size[0]) : "100%";
+            height = size != null ? String.valueOf(size[1]) : "100%";
+        }
+        
+        result.add("<img src=\"" + expr.src() + "\" "
+                        + "width=\"" + width + "\" "
+                        + "height=\"" + height + "\" "
+                        + "loading=\"lazy\" decoding=\"async\">");
+        result.add("<br>");
     }
 
-    @Override
-    public List<String> visitCodeExpr(Expr.Code expr) {
-        List<String> result = new ArrayList<>();
+    private static void code(Expr.Code expr, List<String> result) {
+        String code = expr.language() == null
+                ? expr.code().replace("<", "&lt").replace(">", "&gt")
+                : Highlighter.highlight(expr.language(), expr.code());
         
         result.add("<div class=\"code\">");
-        result.add("<pre>" + expr.code + "</pre>");
+        result.add("<pre>" + code + "</pre>");
         result.add("</div>");
-        
-        return result;
     }
 
-    @Override
-    public List<String> visitMathExpr(Expr.Math expr) {
-        List<String> result = new ArrayList<>();
+    private void math(Expr.Math expr, List<String> result) {
+        features.add(Feature.MATH);
 
         result.add("<div class=\"math\">");
-        result.add("$$" + expr.math + "$$");
+        result.add("$$" + expr.math() + "$$");
         result.add("</div>");
+    }
+    
+    private void include(Expr.Include expr, List<String> result) {
+        Fragments.Fragment fragment = Fragments.include(this, expr);
+        if (fragment == null) return;
         
-        return result;
+        features.addAll(fragment.features);
+        included.putAll(fragment.sources);
+        for (String target : fragment.links) {
+            check(target);
+        }
+        result.addAll(fragment.tags);
     }
     
-    @Override
-    public List<String> visitTableExpr(Expr.Table expr) {
-        List<String> result = new ArrayList<>();
+    private static String cellTag(Expr.Cell expr) {
+        String openingTag = expr.header() ? "<th " : "<td ";
+                
+        if (expr.rowSpan() > 1) {
+            openingTag += "rowspan=\"" + expr.rowSpan() + "\"";
+        }
+                
+        if (expr.colSpan() > 1) {
+            openingTag += " colspan=\"" + expr.colSpan() + "\"";
+        }
         
-        result.add("<table>");
-        for (List<Expr.Cell> row : expr.cells) {
-            result.add("<tr>");
-            for (Expr.Cell cell : row) {
-                result.addAll(cell.accept(this));
-            }
-            result.add("</tr>");
+        return openingTag + ">";
+    }
+    
+    private static boolean isHeader(List<Expr.Cell> row) {
+        if (row.isEmpty()) return false;
+        
+        for (Expr.Cell cell : row) {
+            if (!cell.header()) return false;
         }
-        result.add("</table>");
         
-        return result;    
+        return true;
     }
     
-    @Override
-    public List<String> visitCellExpr(Expr.Cell expr) {
-        List<String> result = new ArrayList<>();
+    // Walks the tree with an explicit stack of pending work instead of
+    // recursion, so any nesting depth fits: a String on the stack is emitted
+    // as is, a node is expanded into its tags and children, and leaves are
+    // rendered straight into the result.
+    private class Walk {
+        private final Deque<Object> stack = new ArrayDeque<>();
+        private final Consumer<List<String>> sink;
+        private List<String> result = new ArrayList<>();
+        private long visited = 0;
         
-        String openingTag = expr.header ? "<th " : "<td ";
-                
-        if (expr.rowSpan > 1) {
-            openingTag += "rowspan=\"" + expr.rowSpan + "\"";
+        Walk(Consumer<List<String>> sink) {
+            this.sink = sink;
         }
+        
+        List<String> run(Expr root) {
+            push(root);
+            
+            while (!stack.isEmpty()) {
+                Object work = stack.pop();
                 
-        if (expr.colSpan > 1) {
-            openingTag += " colspan=\"" + expr.colSpan + "\"";
+                if (work instanceof String) {
+                    result.add((String)work);
+                } else if (work instanceof Expr expr) {
+                    Metrics.node(expr);
+                    budget.work(++visited);
+                    if (!replay(expr)) visit(expr);
+                } else if (work instanceof Memo memo) {
+                    memo.store();
+                } else {
+                    ((Rows)work).next();
+                }
+            }
+            
+            flush();
+            return result;
+        }
+        
+        // Includes are left out since they report their errors each time.
+        // Streamed output is flushed as it goes, so it is never kept.
+        private boolean replay(Expr expr) {
+            if (memo == null || sink != null || expr instanceof Expr.Include) return false;
+            
+            List<String> rendered = memo.get(expr);
+            if (rendered != null) {
+                result.addAll(rendered);
+                return true;
+            }
+            
+            if (!seen.add(expr)) push(new Memo(expr, result.size()));
+            return false;
+        }
+        
+        // Sits below the work of a node's subtree, so it is reached once the
+        // subtree has been translated.
+        private class Memo {
+            private final Expr expr;
+            private final int start;
+            
+            Memo(Expr expr, int start) {
+                this.expr = expr;
+                this.start = start;
+            }
+            
+            void store() {
+                memo.put(expr, new ArrayList<>(result.subList(start, result.size())));
+            }
+        }
+        
+        // Output is produced strictly in document order, so whatever has
+        // been translated so far can be handed to the sink at any point.
+        private void flush() {
+            if (sink == null || result.isEmpty()) return;
+            
+            sink.accept(result);
+            result = new ArrayList<>();
         }
-                
-        result.add(openingTag + ">");
-        result.addAll(expr.content.acceptListable(this));
-        result.add(expr.header ? "</th>" : "</td>");
         
-        return result;  
+        private void push(Object work) {
+            if (work != null) stack.push(work);
+        }
+        
+        private void expand(String open, List<?> children, String close) {
+            push(close);
+            for (int i = children.size() - 1; i >= 0; i--) {
+                push(children.get(i));
+            }
+            push(open);
+        }
+        
+        // With tableChunkRows set, every tableChunkRows rows the table is
+        // closed and reopened with content-visibility: auto, so the browser
+        // can skip laying out the chunks that are off screen. A leading
+        // header row is repeated at the top of each chunk. Row spans do not
+        // cross chunks.
+        private class Rows {
+            private final Iterator<List<Expr.Cell>> rows;
+            private final int chunkRows = options.tableChunkRows;
+            private List<Expr.Cell> header = null;
+            private int count = 0;
+            
+            Rows(Expr.Table table) {
+                this.rows = table.cells().iterator();
+            }
+            
+            void next() {
+                if (!rows.hasNext()) return;
+                
+                flush();
+                List<Expr.Cell> row = rows.next();
+                push(this);
+                expand("<tr>", row, "</tr>");
+                
+                if (chunkRows > 0 && count > 0 && count % chunkRows == 0) {
+                    if (header != null) expand("<tr>", header, "</tr>");
+                    push("<table class=\"chunk\" style=\"content-visibility: auto; "
+                            + "contain-intrinsic-size: auto " + (chunkRows * 3) + "em\">");
+                    push("</table>");
+                }
+                
+                if (count == 0 && isHeader(row)) header = row;
+                count++;
+            }
+        }
+
+        // A type test per kind of node, the most common first. Each test is
+        // against a final record class, so it is a single compare, and the
+        // call sites below stay monomorphic. There is one branch for each of
+        // the nineteen records in Expr, but the compiler does not check the
+        // chain as it would a switch over the sealed type: a new kind of node
+        // needs a branch of its own here, or it fails at runtime.
+        private void visit(Expr expr) {
+            if (expr instanceof Expr.Text text) {
+                result.add(text.content());
+            } else if (expr instanceof Expr.Paragraph paragraph) {
+                element("p", paragraph.text(), result);
+            } else if (expr instanceof Expr.Grouping grouping) {
+                expand(null, grouping.expressions(), null);
+            } else if (expr instanceof Expr.Block block) {
+                expand("<div>", block.expressions(), "</div>");
+            } else if (expr instanceof Expr.ListItem item) {
+                push("</li>");
+                push(item.item());
+                push("<li>");
+            } else if (expr instanceof Expr.Cell cell) {
+                push(cell.header() ? "</th>" : "</td>");
+                push(cell.content());
+                push(cellTag(cell));
+            } else if (expr instanceof Expr.Listing listing) {
+                boolean ordered = listing.ordered();
+                expand(ordered ? "<ol>" : "<ul>", listing.items(), ordered ? "</ol>" : "</ul>");
+            } else if (expr instanceof Expr.Title title) {
+                element("h1", title.text(), result);
+            } else if (expr instanceof Expr.Subtitle subtitle) {
+                element("h2", subtitle.text(), result);
+            } else if (expr instanceof Expr.Caption caption) {
+                element("h3", caption.text(), result);
+            } else if (expr instanceof Expr.Link link) {
+                link(link, result);
+            } else if (expr instanceof Expr.Code code) {
+                code(code, result);
+            } else if (expr instanceof Expr.Math math) {
+                math(math, result);
+            } else if (expr instanceof Expr.Image image) {
+                image(image, result);
+            } else if (expr instanceof Expr.Definition definition) {
+                definition(definition, result);
+            } else if (expr instanceof Expr.DefinitionList list) {
+                definitions(list, result);
+            } else if (expr instanceof Expr.Table table) {
+                push("</table>");
+                push(new Rows(table));
+                push("<table>");
+            } else if (expr instanceof Expr.HorizontalLine) {
+                result.add("<hr>");
+            } else if (expr instanceof Expr.Include include) {
+                include(include, result);
+            } else {
+                throw new AssertionError("No branch for " + expr.getClass().getSimpleName() + " in Walk.visit");
+            }
+        }
     }
 }
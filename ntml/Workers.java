@@ -0,0 +1,27 @@
+package ntml;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+class Workers {
+    // Platform threads are dear, so without virtual threads the tasks
+    // beyond this many wait for one of them.
+    private static final int MAX_THREADS = 64;
+
+    // One virtual thread per task where the runtime has them (Java 21+),
+    // otherwise a pool of at most MAX_THREADS platform threads, which end
+    // when idle.
+    static ExecutorService perTask() {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>());
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+}